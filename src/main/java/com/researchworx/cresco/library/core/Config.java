@@ -1,9 +1,18 @@
 package com.researchworx.cresco.library.core;
 
+import com.google.gson.stream.JsonWriter;
+import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.commons.configuration.SubnodeConfiguration;
+import org.apache.commons.configuration.event.ConfigurationEvent;
+import org.apache.commons.configuration.event.ConfigurationListener;
+import org.apache.commons.configuration.event.EventSource;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Cresco configuration handler
@@ -16,12 +25,23 @@ public class Config {
     private static final String ENV_PREFIX = "CRESCO_";
     /** Plugin configuration object */
     protected SubnodeConfiguration confObj;
+    /** Number of changes made to the configuration object */
+    private final AtomicInteger configVersion = new AtomicInteger();
+    /** Cached JSON representation of the configuration object */
+    private volatile CachedJSON configJSON;
+    /** Listener counting the changes made to the configuration object */
+    private final ConfigurationListener invalidator = new Invalidator(this);
+    /** Configuration object the change listener is registered on, null if none */
+    private volatile SubnodeConfiguration listened;
+    /** Whether the change listener was removed for good */
+    private volatile boolean closed = false;
     /**
      * Constructor
      * @param pluginConfig      Plugin configuration object
      */
     public Config (SubnodeConfiguration pluginConfig) {
         this.confObj = pluginConfig;
+        listen(pluginConfig);
     }
     /**
      * Grab configuration entry as Boolean
@@ -64,7 +84,7 @@ public class Config {
     public Double getDoubleParam(String param) {
         try {
             return Double.parseDouble(System.getenv(ENV_PREFIX + param));
-        } catch (NumberFormatException nfe) {
+        } catch (NumberFormatException | NullPointerException nfe) {
             try {
                 return this.confObj.getDouble(param);
             } catch (NoSuchElementException nsee) {
@@ -179,21 +199,112 @@ public class Config {
      * @return                  JSONified configuration object
      */
     public String getConfigAsJSON() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{");
-        Iterator it = this.confObj.getKeys();
-        while (it.hasNext()) {
-            String key = (String)it.next();
-            String value = this.confObj.getString(key);
-            sb.append("\"");
-            sb.append(key);
-            sb.append("\":\"");
-            sb.append(value);
-            sb.append("\",");
+        SubnodeConfiguration source = this.confObj;
+        if (source != listened && !closed)
+            listen(source);
+        int version = configVersion.get();
+        CachedJSON cached = configJSON;
+        if (cached != null && cached.source == source && cached.version == version && !closed)
+            return cached.json;
+        StringWriter out = new StringWriter();
+        try {
+            JsonWriter writer = new JsonWriter(out);
+            writer.beginObject();
+            Iterator it = source.getKeys();
+            while (it.hasNext()) {
+                String key = (String)it.next();
+                writer.name(key).value(source.getString(key));
+            }
+            writer.endObject();
+            writer.close();
+        } catch (IOException e) {
+            // StringWriter never throws
+            throw new IllegalStateException(e);
+        }
+        String json = out.toString();
+        if (!closed)
+            configJSON = new CachedJSON(source, version, json);
+        return json;
+    }
+    /**
+     * Removes the change listener from the configuration object and its parent, after which the JSON
+     * representation is no longer cached
+     */
+    public synchronized void close() {
+        closed = true;
+        unlisten(listened);
+        listened = null;
+        configJSON = null;
+    }
+    /**
+     * Moves the change listener to a configuration object and its parent, which are shared with other plugins
+     * @param source            Configuration object to listen to, may be null
+     */
+    private synchronized void listen(SubnodeConfiguration source) {
+        if (closed || source == listened)
+            return;
+        unlisten(listened);
+        if (source != null) {
+            source.addConfigurationListener(invalidator);
+            HierarchicalConfiguration parent = source.getParent();
+            if (parent != null)
+                parent.addConfigurationListener(invalidator);
+        }
+        listened = source;
+        configVersion.incrementAndGet();
+    }
+    /**
+     * Removes the change listener from a configuration object and its parent
+     * @param source            Configuration object listened to, may be null
+     */
+    private void unlisten(SubnodeConfiguration source) {
+        if (source == null)
+            return;
+        source.removeConfigurationListener(invalidator);
+        HierarchicalConfiguration parent = source.getParent();
+        if (parent != null)
+            parent.removeConfigurationListener(invalidator);
+    }
+
+    /**
+     * Change listener holding its Config weakly, so that the shared parent configuration does not keep every
+     * Config reachable; once the Config is collected the listener removes itself on the next change
+     */
+    private static class Invalidator implements ConfigurationListener {
+        /** Config whose change count is kept */
+        private final WeakReference<Config> config;
+
+        Invalidator(Config config) {
+            this.config = new WeakReference<>(config);
+        }
+
+        @Override
+        public void configurationChanged(ConfigurationEvent event) {
+            Config target = config.get();
+            if (target == null) {
+                if (event.getSource() instanceof EventSource)
+                    ((EventSource) event.getSource()).removeConfigurationListener(this);
+            } else if (!event.isBeforeUpdate()) {
+                target.configVersion.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * JSON representation of a configuration object at a given version
+     */
+    private static class CachedJSON {
+        /** Configuration object the representation was built from */
+        final SubnodeConfiguration source;
+        /** Change count the representation was built at */
+        final int version;
+        /** JSON representation */
+        final String json;
+
+        CachedJSON(SubnodeConfiguration source, int version, String json) {
+            this.source = source;
+            this.version = version;
+            this.json = json;
         }
-        if (sb.lastIndexOf(",") > -1)
-            sb.deleteCharAt(sb.lastIndexOf(","));
-        sb.append("}");
-        return sb.toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,555 @@
+package com.researchworx.cresco.library.core;
+
+import com.researchworx.cresco.library.messaging.MsgEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Cresco WatchDog heartbeat failure detector
+ *
+ * Receiving side of the {@link WatchDog} ticks. Each monitored plugin is assigned a slot in a set of primitive
+ * arrays holding a sliding window of heartbeat inter-arrival times, from which a phi-accrual suspicion level is
+ * computed. Deadlines live in a hashed timer wheel, so each tick only looks at plugins that are actually due.
+ * If the monitor itself stalls (e.g. during a GC pause) due plugins are given a grace period instead of being
+ * declared suspect because heartbeats could not be processed in time. A plugin that stays dead for the dead
+ * retention time is forgotten and its slot reused, a later heartbeat registering it again as a new plugin;
+ * {@link #remove(String)} forgets a plugin right away.
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public class HeartbeatMonitor {
+    /**
+     * Receiver of plugin state transitions
+     */
+    public interface Listener {
+        /**
+         * Called when a plugin first crosses the suspect threshold
+         * @param id            Plugin identifier
+         * @param phi           Suspicion level
+         */
+        void onSuspect(String id, double phi);
+
+        /**
+         * Called when a plugin crosses the dead threshold
+         * @param id            Plugin identifier
+         * @param phi           Suspicion level
+         */
+        void onDead(String id, double phi);
+
+        /**
+         * Called when a heartbeat arrives from a suspect or dead plugin still monitored
+         * @param id            Plugin identifier
+         */
+        void onRecovered(String id);
+    }
+
+    /** Default maximum number of monitored plugins */
+    public static final int DEFAULT_CAPACITY = 100000;
+    /** Default number of inter-arrival samples kept per plugin */
+    public static final int DEFAULT_WINDOW = 32;
+    /** Default suspicion level at which a plugin becomes suspect */
+    public static final double DEFAULT_SUSPECT_THRESHOLD = 8d;
+    /** Default suspicion level at which a plugin is declared dead */
+    public static final double DEFAULT_DEAD_THRESHOLD = 16d;
+    /** Default timer wheel resolution (in milliseconds) */
+    public static final long DEFAULT_TICK = 100L;
+    /** Default time a dead plugin is kept before its slot is freed (in milliseconds) */
+    public static final long DEFAULT_DEAD_RETENTION = 60000L;
+
+    /** Slot is not in use */
+    private static final byte FREE = 0;
+    /** Plugin is considered alive */
+    private static final byte ALIVE = 1;
+    /** Plugin is suspect */
+    private static final byte SUSPECT = 2;
+    /** Plugin is considered dead */
+    private static final byte DEAD = 3;
+    /** End of a slot list */
+    private static final int NIL = -1;
+    /** Number of buckets in the timer wheel, must be a power of two */
+    private static final int WHEEL_SIZE = 1024;
+
+    /** Receiver of state transitions */
+    private final Listener listener;
+    /** Maximum number of monitored plugins */
+    private final int capacity;
+    /** Inter-arrival samples kept per plugin */
+    private final int window;
+    /** Suspicion level at which a plugin becomes suspect */
+    private final double suspectThreshold;
+    /** Suspicion level at which a plugin is declared dead */
+    private final double deadThreshold;
+    /** Timer wheel resolution (in milliseconds) */
+    private final long tickMillis;
+    /** Expected heartbeat interval before any samples are available (in milliseconds) */
+    private final long expectedInterval;
+    /** Lower bound on the inter-arrival standard deviation (in milliseconds) */
+    private final double minStdDev;
+    /** Time a dead plugin is kept before its slot is freed (in milliseconds) */
+    private final long deadRetention;
+
+    /** Slot of each monitored plugin */
+    private final Map<String, Integer> slots = new HashMap<>();
+    /** Plugin identifier by slot */
+    private final String[] ids;
+    /** State by slot */
+    private final byte[] states;
+    /** Last heartbeat arrival by slot (in milliseconds) */
+    private final long[] lastArrival;
+    /** Inter-arrival samples, {@link #window} consecutive entries per slot (in milliseconds) */
+    private final int[] intervals;
+    /** Number of samples by slot */
+    private final int[] sampleCount;
+    /** Next sample position by slot */
+    private final int[] sampleIndex;
+    /** Sum of samples by slot */
+    private final double[] sampleSum;
+    /** Sum of squared samples by slot */
+    private final double[] sampleSumSq;
+    /** Unused slots */
+    private final int[] freeSlots;
+    /** Number of unused slots */
+    private int freeCount;
+
+    /** Deadline by slot (in ticks), or -1 when not scheduled */
+    private final long[] deadline;
+    /** Next slot in the same wheel bucket */
+    private final int[] wheelNext;
+    /** Previous slot in the same wheel bucket */
+    private final int[] wheelPrev;
+    /** First slot of each wheel bucket */
+    private final int[] wheelHead = new int[WHEEL_SIZE];
+    /** Next tick to process */
+    private long currentTick;
+    /** Wall time of the last processed tick (in milliseconds) */
+    private long lastTickTime;
+    /** Due plugins are rescheduled rather than evaluated until this time (in milliseconds) */
+    private long graceUntil = 0L;
+    /** Tick driver */
+    private Timer timer;
+
+    /**
+     * Constructor
+     * @param listener      Receiver of state transitions
+     * @param config        Configuration instance, watchdogtimer is used as the expected heartbeat interval
+     */
+    public HeartbeatMonitor(Listener listener, Config config) {
+        this(listener, config.getIntegerParam("heartbeat_capacity", DEFAULT_CAPACITY),
+                config.getIntegerParam("heartbeat_window", DEFAULT_WINDOW),
+                config.getDoubleParam("heartbeat_suspect_phi", DEFAULT_SUSPECT_THRESHOLD),
+                config.getDoubleParam("heartbeat_dead_phi", DEFAULT_DEAD_THRESHOLD),
+                config.getLongParam("heartbeat_tick", DEFAULT_TICK),
+                config.getLongParam("watchdogtimer", 5000L),
+                config.getLongParam("heartbeat_dead_retention", DEFAULT_DEAD_RETENTION));
+    }
+
+    /**
+     * Constructor using the default dead retention time
+     * @param listener          Receiver of state transitions
+     * @param capacity          Maximum number of monitored plugins
+     * @param window            Inter-arrival samples kept per plugin
+     * @param suspectThreshold  Suspicion level at which a plugin becomes suspect
+     * @param deadThreshold     Suspicion level at which a plugin is declared dead
+     * @param tickMillis        Timer wheel resolution (in milliseconds)
+     * @param expectedInterval  Expected heartbeat interval (in milliseconds)
+     */
+    public HeartbeatMonitor(Listener listener, int capacity, int window, double suspectThreshold,
+                            double deadThreshold, long tickMillis, long expectedInterval) {
+        this(listener, capacity, window, suspectThreshold, deadThreshold, tickMillis, expectedInterval,
+                DEFAULT_DEAD_RETENTION);
+    }
+
+    /**
+     * Constructor
+     * @param listener          Receiver of state transitions
+     * @param capacity          Maximum number of monitored plugins
+     * @param window            Inter-arrival samples kept per plugin
+     * @param suspectThreshold  Suspicion level at which a plugin becomes suspect
+     * @param deadThreshold     Suspicion level at which a plugin is declared dead
+     * @param tickMillis        Timer wheel resolution (in milliseconds)
+     * @param expectedInterval  Expected heartbeat interval (in milliseconds)
+     * @param deadRetention     Time a dead plugin is kept before its slot is freed (in milliseconds)
+     */
+    public HeartbeatMonitor(Listener listener, int capacity, int window, double suspectThreshold,
+                            double deadThreshold, long tickMillis, long expectedInterval, long deadRetention) {
+        if (capacity <= 0 || window <= 0 || tickMillis <= 0 || expectedInterval <= 0)
+            throw new IllegalArgumentException("capacity, window, tickMillis and expectedInterval must be positive");
+        if (deadRetention < 0)
+            throw new IllegalArgumentException("deadRetention must not be negative");
+        if (deadThreshold < suspectThreshold)
+            throw new IllegalArgumentException("deadThreshold must not be lower than suspectThreshold");
+        this.listener = listener;
+        this.capacity = capacity;
+        this.window = window;
+        this.suspectThreshold = suspectThreshold;
+        this.deadThreshold = deadThreshold;
+        this.tickMillis = tickMillis;
+        this.expectedInterval = expectedInterval;
+        this.minStdDev = Math.max(tickMillis, expectedInterval / 10d);
+        this.deadRetention = deadRetention;
+        ids = new String[capacity];
+        states = new byte[capacity];
+        lastArrival = new long[capacity];
+        intervals = new int[capacity * window];
+        sampleCount = new int[capacity];
+        sampleIndex = new int[capacity];
+        sampleSum = new double[capacity];
+        sampleSumSq = new double[capacity];
+        deadline = new long[capacity];
+        wheelNext = new int[capacity];
+        wheelPrev = new int[capacity];
+        freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++)
+            freeSlots[i] = capacity - 1 - i;
+        freeCount = capacity;
+        Arrays.fill(deadline, -1L);
+        Arrays.fill(wheelHead, NIL);
+        lastTickTime = System.currentTimeMillis();
+        currentTick = lastTickTime / tickMillis;
+    }
+
+    /**
+     * Starts evaluating deadlines
+     * @return              This instance
+     */
+    public synchronized HeartbeatMonitor start() {
+        if (timer != null) return this;
+        lastTickTime = System.currentTimeMillis();
+        currentTick = lastTickTime / tickMillis;
+        timer = new Timer("HeartbeatMonitor", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                tick(System.currentTimeMillis());
+            }
+        }, tickMillis, tickMillis);
+        return this;
+    }
+
+    /**
+     * Stops evaluating deadlines
+     * @return              Whether the instance was running
+     */
+    public synchronized boolean stop() {
+        if (timer == null) return false;
+        timer.cancel();
+        timer = null;
+        return true;
+    }
+
+    /**
+     * Records a WatchDog tick
+     * @param tick          WATCHDOG message
+     * @return              Whether the message was a heartbeat that could be recorded
+     */
+    public boolean heartbeat(MsgEvent tick) {
+        if (tick.getMsgType() != MsgEvent.Type.WATCHDOG)
+            return false;
+        return heartbeat(idOf(tick.getParam("src_region"), tick.getParam("src_agent"), tick.getParam("src_plugin")));
+    }
+
+    /**
+     * Records a heartbeat
+     * @param id            Plugin identifier
+     * @return              Whether the heartbeat could be recorded
+     */
+    public boolean heartbeat(String id) {
+        return heartbeat(id, System.currentTimeMillis());
+    }
+
+    /**
+     * Records a heartbeat
+     * @param id            Plugin identifier
+     * @param now           Arrival time (in milliseconds)
+     * @return              Whether the heartbeat could be recorded
+     */
+    public boolean heartbeat(String id, long now) {
+        boolean recovered;
+        synchronized (this) {
+            Integer existing = slots.get(id);
+            int slot;
+            if (existing == null) {
+                if (freeCount == 0)
+                    return false;
+                slot = freeSlots[--freeCount];
+                slots.put(id, slot);
+                ids[slot] = id;
+                states[slot] = ALIVE;
+                sampleCount[slot] = 0;
+                sampleIndex[slot] = 0;
+                sampleSum[slot] = 0d;
+                sampleSumSq[slot] = 0d;
+            } else {
+                slot = existing;
+                addSample(slot, now - lastArrival[slot]);
+            }
+            lastArrival[slot] = now;
+            recovered = states[slot] == SUSPECT || states[slot] == DEAD;
+            states[slot] = ALIVE;
+            schedule(slot, (now + Math.round(mean(slot))) / tickMillis);
+        }
+        if (recovered && listener != null)
+            listener.onRecovered(id);
+        return true;
+    }
+
+    /**
+     * Stops monitoring a plugin
+     * @param id            Plugin identifier
+     * @return              Whether the plugin was being monitored
+     */
+    public synchronized boolean remove(String id) {
+        Integer slot = slots.get(id);
+        if (slot == null)
+            return false;
+        release(slot);
+        return true;
+    }
+
+    /**
+     * Computes the current suspicion level of a plugin
+     * @param id            Plugin identifier
+     * @return              Suspicion level, or -1 if the plugin is not monitored
+     */
+    public synchronized double phi(String id) {
+        Integer slot = slots.get(id);
+        if (slot == null)
+            return -1d;
+        return phi(slot, System.currentTimeMillis());
+    }
+
+    /**
+     * Number of monitored plugins
+     * @return              Number of monitored plugins
+     */
+    public synchronized int size() {
+        return slots.size();
+    }
+
+    /**
+     * Builds the identifier of a plugin
+     * @param region        Region of the plugin
+     * @param agent         Agent of the plugin
+     * @param pluginID      Plugin ID, null for an agent
+     * @return              Plugin identifier
+     */
+    public static String idOf(String region, String agent, String pluginID) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(region).append('/').append(agent);
+        if (pluginID != null)
+            sb.append('/').append(pluginID);
+        return sb.toString();
+    }
+
+    /**
+     * Processes all wheel buckets up to the given time
+     * @param now           Current time (in milliseconds)
+     */
+    void tick(long now) {
+        List<Transition> transitions = new ArrayList<>();
+        synchronized (this) {
+            long stall = now - lastTickTime - tickMillis;
+            if (stall > minStdDev)
+                graceUntil = now + Math.min(stall, expectedInterval);
+            lastTickTime = now;
+            long targetTick = now / tickMillis;
+            // Visiting each bucket once covers every deadline up to the target tick
+            if (targetTick - currentTick >= WHEEL_SIZE)
+                currentTick = targetTick - WHEEL_SIZE + 1;
+            while (currentTick <= targetTick) {
+                int bucket = (int) (currentTick & (WHEEL_SIZE - 1));
+                int slot = wheelHead[bucket];
+                while (slot != NIL) {
+                    int next = wheelNext[slot];
+                    if (deadline[slot] <= currentTick)
+                        evaluate(slot, now, transitions);
+                    slot = next;
+                }
+                currentTick++;
+            }
+        }
+        if (listener == null)
+            return;
+        for (Transition transition : transitions) {
+            if (transition.state == SUSPECT)
+                listener.onSuspect(transition.id, transition.phi);
+            else
+                listener.onDead(transition.id, transition.phi);
+        }
+    }
+
+    /**
+     * Evaluates a due plugin and reschedules it, a dead plugin being due once its retention time is over
+     * @param slot          Slot of the plugin
+     * @param now           Current time (in milliseconds)
+     * @param transitions   Collector of resulting state transitions
+     */
+    private void evaluate(int slot, long now, List<Transition> transitions) {
+        unschedule(slot);
+        if (now < graceUntil) {
+            schedule(slot, graceUntil / tickMillis + 1);
+            return;
+        }
+        if (states[slot] == DEAD) {
+            release(slot);
+            return;
+        }
+        double phi = phi(slot, now);
+        if (phi >= deadThreshold) {
+            states[slot] = DEAD;
+            transitions.add(new Transition(ids[slot], DEAD, phi));
+            schedule(slot, (now + deadRetention) / tickMillis);
+            return;
+        }
+        if (phi >= suspectThreshold && states[slot] == ALIVE) {
+            states[slot] = SUSPECT;
+            transitions.add(new Transition(ids[slot], SUSPECT, phi));
+        }
+        long recheck = Math.max(tickMillis, Math.round(stdDev(slot, mean(slot))));
+        schedule(slot, (now + recheck) / tickMillis);
+    }
+
+    /**
+     * Stops monitoring the plugin of a slot and makes the slot available
+     * @param slot          Slot of the plugin
+     */
+    private void release(int slot) {
+        unschedule(slot);
+        slots.remove(ids[slot]);
+        ids[slot] = null;
+        states[slot] = FREE;
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Phi-accrual suspicion level, using the logistic approximation of the normal distribution
+     * @param slot          Slot of the plugin
+     * @param now           Current time (in milliseconds)
+     * @return              Suspicion level
+     */
+    private double phi(int slot, long now) {
+        double mean = mean(slot);
+        double stdDev = stdDev(slot, mean);
+        double y = (now - lastArrival[slot] - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976d + 0.070566d * y * y));
+        if (y > 0)
+            return -Math.log10(e / (1d + e));
+        return -Math.log10(1d - 1d / (1d + e));
+    }
+
+    /**
+     * Mean heartbeat inter-arrival time of a plugin
+     * @param slot          Slot of the plugin
+     * @return              Mean inter-arrival time (in milliseconds)
+     */
+    private double mean(int slot) {
+        int n = sampleCount[slot];
+        return n == 0 ? expectedInterval : sampleSum[slot] / n;
+    }
+
+    /**
+     * Standard deviation of the heartbeat inter-arrival time of a plugin
+     * @param slot          Slot of the plugin
+     * @param mean          Mean inter-arrival time (in milliseconds)
+     * @return              Standard deviation (in milliseconds), at least {@link #minStdDev}
+     */
+    private double stdDev(int slot, double mean) {
+        int n = sampleCount[slot];
+        if (n < 2)
+            return Math.max(minStdDev, mean / 4d);
+        double variance = sampleSumSq[slot] / n - mean * mean;
+        return Math.max(minStdDev, Math.sqrt(Math.max(0d, variance)));
+    }
+
+    /**
+     * Adds an inter-arrival sample to the sliding window of a plugin
+     * @param slot          Slot of the plugin
+     * @param interval      Inter-arrival time (in milliseconds)
+     */
+    private void addSample(int slot, long interval) {
+        int sample = (int) Math.min(Integer.MAX_VALUE, Math.max(0L, interval));
+        int pos = slot * window + sampleIndex[slot];
+        if (sampleCount[slot] == window) {
+            int evicted = intervals[pos];
+            sampleSum[slot] -= evicted;
+            sampleSumSq[slot] -= (double) evicted * evicted;
+        } else {
+            sampleCount[slot]++;
+        }
+        intervals[pos] = sample;
+        sampleSum[slot] += sample;
+        sampleSumSq[slot] += (double) sample * sample;
+        sampleIndex[slot] = (sampleIndex[slot] + 1) % window;
+    }
+
+    /**
+     * Places a plugin in the timer wheel
+     * @param slot          Slot of the plugin
+     * @param tick          Tick at which the plugin is due
+     */
+    private void schedule(int slot, long tick) {
+        unschedule(slot);
+        if (tick < currentTick)
+            tick = currentTick;
+        deadline[slot] = tick;
+        int bucket = (int) (tick & (WHEEL_SIZE - 1));
+        int head = wheelHead[bucket];
+        wheelPrev[slot] = NIL;
+        wheelNext[slot] = head;
+        if (head != NIL)
+            wheelPrev[head] = slot;
+        wheelHead[bucket] = slot;
+    }
+
+    /**
+     * Removes a plugin from the timer wheel
+     * @param slot          Slot of the plugin
+     */
+    private void unschedule(int slot) {
+        if (deadline[slot] < 0)
+            return;
+        int bucket = (int) (deadline[slot] & (WHEEL_SIZE - 1));
+        int prev = wheelPrev[slot];
+        int next = wheelNext[slot];
+        if (prev != NIL)
+            wheelNext[prev] = next;
+        else
+            wheelHead[bucket] = next;
+        if (next != NIL)
+            wheelPrev[next] = prev;
+        deadline[slot] = -1L;
+    }
+
+    /**
+     * State transition awaiting delivery to the listener
+     */
+    private static class Transition {
+        /** Plugin identifier */
+        final String id;
+        /** New state */
+        final byte state;
+        /** Suspicion level at the transition */
+        final double phi;
+
+        Transition(String id, byte state, double phi) {
+            this.id = id;
+            this.state = state;
+            this.phi = phi;
+        }
+    }
+
+    /**
+     * Capacity getter
+     * @return          Maximum number of monitored plugins
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,115 @@
+package com.researchworx.cresco.library.core;
+
+/**
+ * Cresco component identity
+ *
+ * Immutable snapshot of the region, agent and plugin a component reports from. Components read one snapshot
+ * per message, so a message never mixes the fields of two identities; see {@link SharedIdentity} for the
+ * holder swapped on updates.
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public final class Identity {
+    /** Region to report from */
+    private final String region;
+    /** Agent to report from */
+    private final String agent;
+    /** Plugin ID to report from */
+    private final String pluginID;
+
+    /**
+     * Constructor
+     * @param region        Region to report from
+     * @param agent         Agent to report from
+     * @param pluginID      Plugin ID to report from
+     */
+    public Identity(String region, String agent, String pluginID) {
+        this.region = region;
+        this.agent = agent;
+        this.pluginID = pluginID;
+    }
+
+    /**
+     * Region identification getter
+     * @return          Region identification
+     */
+    public String getRegion() {
+        return region;
+    }
+
+    /**
+     * Agent identification getter
+     * @return          Agent identification
+     */
+    public String getAgent() {
+        return agent;
+    }
+
+    /**
+     * Plugin identification getter
+     * @return          Plugin identification
+     */
+    public String getPluginID() {
+        return pluginID;
+    }
+
+    /**
+     * Returns a copy with another region
+     * @param region        New region identification
+     * @return              The new identity
+     */
+    public Identity withRegion(String region) {
+        return new Identity(region, agent, pluginID);
+    }
+
+    /**
+     * Returns a copy with another agent
+     * @param agent         New agent identification
+     * @return              The new identity
+     */
+    public Identity withAgent(String agent) {
+        return new Identity(region, agent, pluginID);
+    }
+
+    /**
+     * Returns a copy with another plugin ID
+     * @param pluginID      New plugin identification
+     * @return              The new identity
+     */
+    public Identity withPluginID(String pluginID) {
+        return new Identity(region, agent, pluginID);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Identity))
+            return false;
+        Identity other = (Identity) o;
+        return equal(region, other.region) && equal(agent, other.agent) && equal(pluginID, other.pluginID);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = region != null ? region.hashCode() : 0;
+        h = 31 * h + (agent != null ? agent.hashCode() : 0);
+        return 31 * h + (pluginID != null ? pluginID.hashCode() : 0);
+    }
+
+    @Override
+    public String toString() {
+        return region + "/" + agent + "/" + pluginID;
+    }
+
+    /**
+     * Null-safe string comparison
+     * @param a             First string
+     * @param b             Second string
+     * @return              Whether both are null or equal
+     */
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,108 @@
+package com.researchworx.cresco.library.core;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Cresco shared component identity
+ *
+ * Holds the current {@link Identity} of a plugin. One instance can be handed to its {@link WatchDog},
+ * {@link com.researchworx.cresco.library.messaging.RPC} and
+ * {@link com.researchworx.cresco.library.utilities.CLogger}, so a single atomic swap moves all of them to a new
+ * identity, e.g. when the agent re-registers, without restarting anything.
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public class SharedIdentity {
+    /** Current identity */
+    private final AtomicReference<Identity> current;
+
+    /**
+     * Constructor
+     * @param region        Region to report from
+     * @param agent         Agent to report from
+     * @param pluginID      Plugin ID to report from
+     */
+    public SharedIdentity(String region, String agent, String pluginID) {
+        this(new Identity(region, agent, pluginID));
+    }
+
+    /**
+     * Constructor
+     * @param identity      Identity to report from
+     */
+    public SharedIdentity(Identity identity) {
+        this.current = new AtomicReference<>(identity);
+    }
+
+    /**
+     * Identity getter
+     * @return          Current identity snapshot
+     */
+    public Identity get() {
+        return current.get();
+    }
+
+    /**
+     * Identity setter
+     * @param identity  New identity
+     */
+    public void set(Identity identity) {
+        current.set(identity);
+    }
+
+    /**
+     * Replaces the identity
+     * @param region        New region to report from
+     * @param agent         New agent to report from
+     * @param pluginID      New plugin ID to report from
+     * @return              The new identity
+     */
+    public Identity update(String region, String agent, String pluginID) {
+        Identity identity = new Identity(region, agent, pluginID);
+        current.set(identity);
+        return identity;
+    }
+
+    /**
+     * Replaces the region, keeping the other fields of the identity
+     * @param region        New region identification
+     * @return              The new identity
+     */
+    public Identity updateRegion(String region) {
+        while (true) {
+            Identity prev = current.get();
+            Identity next = prev.withRegion(region);
+            if (current.compareAndSet(prev, next))
+                return next;
+        }
+    }
+
+    /**
+     * Replaces the agent, keeping the other fields of the identity
+     * @param agent         New agent identification
+     * @return              The new identity
+     */
+    public Identity updateAgent(String agent) {
+        while (true) {
+            Identity prev = current.get();
+            Identity next = prev.withAgent(agent);
+            if (current.compareAndSet(prev, next))
+                return next;
+        }
+    }
+
+    /**
+     * Replaces the plugin ID, keeping the other fields of the identity
+     * @param pluginID      New plugin identification
+     * @return              The new identity
+     */
+    public Identity updatePluginID(String pluginID) {
+        while (true) {
+            Identity prev = current.get();
+            Identity next = prev.withPluginID(pluginID);
+            if (current.compareAndSet(prev, next))
+                return next;
+        }
+    }
+}
@@ -1,34 +1,52 @@
 package com.researchworx.cresco.library.core;
 
 import com.researchworx.cresco.library.messaging.MsgEvent;
+import com.researchworx.cresco.library.messaging.TraceContext;
+import com.researchworx.cresco.library.messaging.Tracer;
 import com.researchworx.cresco.library.utilities.CLogger;
 
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Cresco WatchDog heartbeat system
+ *
+ * The lifecycle is a state machine whose transitions are claimed by compare-and-set, so concurrent calls to
+ * {@link #start()}, {@link #stop()} and {@link #restart()} never leave more than one timer running. It is not
+ * lock-free: a call arriving while another thread is starting or stopping the timer spins, yielding, until that
+ * short transition completes. Each tick reads the current identity, so identity
+ * updates take effect without restarting the timer; the new identity is announced once with an enable message.
  * @author V.K. Cody Bumgardner
  * @author Caylin Hickey
  * @since 0.1.0
  */
 public class WatchDog {
+    /**
+     * Lifecycle states
+     */
+    private enum State {
+        STOPPED, STARTING, RUNNING, STOPPING
+    }
+
     /** Timer control object */
-    private Timer timer;
+    private volatile Timer timer;
     /** Control object */
-    private boolean running = false;
+    private final AtomicReference<State> state = new AtomicReference<>(State.STOPPED);
     /** Start time of the WatchDog timer */
-    private long startTS;
-    /** Region to report from */
-    private String region;
-    /** Agent to report from */
-    private String agent;
-    /** Plugin ID to report from */
-    private String pluginID;
+    private volatile long startTS;
+    /** Interval of the running timer (in milliseconds) */
+    private volatile long interval;
+    /** Identity to report from */
+    private final SharedIdentity identity;
+    /** Identity last announced with an enable message */
+    private final AtomicReference<Identity> announced = new AtomicReference<>();
     /** Logger instance */
-    private CLogger logger;
+    private volatile CLogger logger;
     /** Configuration instance */
-    private Config config;
+    private volatile Config config;
+    /** Trace of the current timer session */
+    private volatile TraceContext trace;
 
     /**
      * Constructor
@@ -39,28 +57,38 @@ public class WatchDog {
      * @param config        Configuration instance
      */
     public WatchDog(String region, String agent, String pluginID, CLogger logger, Config config) {
-        this.region = region;
-        this.agent = agent;
-        this.pluginID = pluginID;
+        this(new SharedIdentity(region, agent, pluginID), logger, config);
+    }
+
+    /**
+     * Constructor
+     * @param identity      Identity to report from, possibly shared with other components
+     * @param logger        Logger instance
+     * @param config        Configuration instance
+     */
+    public WatchDog(SharedIdentity identity, CLogger logger, Config config) {
+        this.identity = identity;
         this.logger = logger;
         this.config = config;
     }
 
     /**
-     * Updates the identity broadcast by this WatchDog instance
+     * Updates the identity broadcast by this WatchDog instance, announcing it right away if running and
+     * starting the instance otherwise
      * @param region        New Region to report from
      * @param agent         New Agent to report from
      * @param pluginID      New Plugin ID to report from
      */
     public void update(String region, String agent, String pluginID) {
-        setRegion(region);
-        setAgent(agent);
-        setPluginID(pluginID);
-        restart();
+        identity.update(region, agent, pluginID);
+        if (state.get() == State.RUNNING)
+            announce(identity.get());
+        else
+            start();
     }
 
     /**
-     * Updates the parameters of this WatchDog instance
+     * Updates the parameters of this WatchDog instance, restarting the timer only if its interval changed
      * @param region        New Region to report from
      * @param agent         New Agent to report from
      * @param pluginID      New Plugin ID to report from
@@ -70,31 +98,51 @@ public class WatchDog {
     public void update(String region, String agent, String pluginID, CLogger logger, Config config) {
         setLogger(logger);
         setConfig(config);
-        update(region, agent, pluginID);
+        if (state.get() == State.RUNNING && config.getLongParam("watchdogtimer", 5000L) != interval) {
+            identity.update(region, agent, pluginID);
+            restart();
+        } else {
+            update(region, agent, pluginID);
+        }
     }
 
     /**
-     * Starts this WatchDog instance
+     * Starts this WatchDog instance, waiting for a concurrent stop to complete first
+     * <p>If starting fails, the instance is left stopped and the failure is rethrown.</p>
      * @return              This instance
      */
     public WatchDog start() {
-        if (running) return this;
-        Long interval = config.getLongParam("watchdogtimer", 5000L);
-        startTS = System.currentTimeMillis();
-        MsgEvent enabled = new MsgEvent(MsgEvent.Type.CONFIG, region, null, null, "WatchDog timer set to " + interval + " milliseconds");
-        enabled.setParam("src_region", region);
-        enabled.setParam("src_agent", agent);
-        enabled.setParam("src_plugin", pluginID);
-        enabled.setParam("dst_region", region);
-        enabled.setParam("dst_agent", agent);
-        enabled.setParam("watchdogtimer", String.valueOf(interval));
-        enabled.setCompressedParam("config", config.getConfigAsJSON());
-        enabled.setParam("action", "enable");
-        logger.log(enabled);
-        timer = new Timer();
-        timer.scheduleAtFixedRate(new WatchDogTask(region, agent, pluginID, logger), 500, interval);
-        running = true;
-        return this;
+        while (true) {
+            State current = state.get();
+            if (current == State.STARTING || current == State.RUNNING)
+                return this;
+            if (current == State.STOPPING) {
+                Thread.yield();
+                continue;
+            }
+            if (state.compareAndSet(State.STOPPED, State.STARTING))
+                break;
+        }
+        Timer created = null;
+        try {
+            interval = config.getLongParam("watchdogtimer", 5000L);
+            startTS = System.currentTimeMillis();
+            trace = Tracer.getDefault().nextSpan();
+            announced.set(null);
+            announce(identity.get());
+            created = new Timer();
+            created.scheduleAtFixedRate(new WatchDogTask(startTS, trace), 500, interval);
+            timer = created;
+            state.set(State.RUNNING);
+            return this;
+        } catch (RuntimeException | Error e) {
+            // Leave the instance stopped rather than stuck starting, which would block every later call
+            if (created != null)
+                created.cancel();
+            announced.set(null);
+            state.set(State.STOPPED);
+            throw e;
+        }
     }
 
     /**
@@ -102,8 +150,7 @@ public class WatchDog {
      * @return              This instance
      */
     public WatchDog restart() {
-        if (running) timer.cancel();
-        this.running = false;
+        halt();
         return start();
     }
 
@@ -112,69 +159,116 @@ public class WatchDog {
      * @return              Whether the instance was stopped
      */
     public boolean stop() {
-        if (!running) return false;
-        timer.cancel();
-        running = false;
-        MsgEvent disabled = new MsgEvent(MsgEvent.Type.CONFIG, region, null, null, "WatchDog timer is shutting down");
-        disabled.setParam("src_region", region);
-        disabled.setParam("src_agent", agent);
-        disabled.setParam("src_plugin", pluginID);
-        disabled.setParam("dst_region", region);
-        disabled.setParam("dst_agent", agent);
+        if (!halt()) return false;
+        Identity current = identity.get();
+        MsgEvent disabled = new MsgEvent(MsgEvent.Type.CONFIG, current.getRegion(), null, null, "WatchDog timer is shutting down");
+        disabled.setParam("src_region", current.getRegion());
+        disabled.setParam("src_agent", current.getAgent());
+        disabled.setParam("src_plugin", current.getPluginID());
+        disabled.setParam("dst_region", current.getRegion());
+        disabled.setParam("dst_agent", current.getAgent());
         disabled.setParam("action", "disable");
+        trace.inject(disabled);
         logger.log(disabled);
         return true;
     }
 
     /**
-     * Tick of the WatchDog timer
+     * Cancels the timer, spinning until a concurrent start or stop completes first
+     * @return              Whether this call stopped a running timer
+     */
+    private boolean halt() {
+        while (true) {
+            State current = state.get();
+            if (current == State.STOPPED)
+                return false;
+            if (current == State.RUNNING && state.compareAndSet(State.RUNNING, State.STOPPING))
+                break;
+            Thread.yield();
+        }
+        timer.cancel();
+        state.set(State.STOPPED);
+        return true;
+    }
+
+    /**
+     * Sends the enable message of an identity, unless it was already announced
+     * @param current       Identity to announce
+     */
+    private void announce(Identity current) {
+        Identity previous = announced.get();
+        if (current.equals(previous) || !announced.compareAndSet(previous, current))
+            return;
+        MsgEvent enabled = new MsgEvent(MsgEvent.Type.CONFIG, current.getRegion(), null, null, "WatchDog timer set to " + interval + " milliseconds");
+        enabled.setParam("src_region", current.getRegion());
+        enabled.setParam("src_agent", current.getAgent());
+        enabled.setParam("src_plugin", current.getPluginID());
+        enabled.setParam("dst_region", current.getRegion());
+        enabled.setParam("dst_agent", current.getAgent());
+        enabled.setParam("watchdogtimer", String.valueOf(interval));
+        enabled.setCompressedParam("config", config.getConfigAsJSON());
+        enabled.setParam("action", "enable");
+        trace.inject(enabled);
+        logger.log(enabled);
+    }
+
+    /**
+     * Tick of the WatchDog timer, also exports the spans recorded by the shared {@link Tracer}, each under the
+     * identity of the component that recorded it
      */
     private class WatchDogTask extends TimerTask {
-        /** Region to report from */
-        private String region;
-        /** Agent to report from */
-        private String agent;
-        /** Plugin ID to report from */
-        private String pluginID;
-        /** Logger channel */
-        private CLogger logger;
+        /** Start time of the timer session */
+        private final long startTS;
+        /** Trace of the timer session */
+        private final TraceContext trace;
 
         /**
          * Constructor
-         * @param region        Region to report from
-         * @param agent         Agent to report from
-         * @param pluginID      Plugin ID to report from
-         * @param logger        Logger channel
+         * @param startTS       Start time of the timer session
+         * @param trace         Trace of the timer session
          */
-        WatchDogTask(String region, String agent, String pluginID, CLogger logger) {
-            this.region = region;
-            this.agent = agent;
-            this.pluginID = pluginID;
-            this.logger = logger;
+        WatchDogTask(long startTS, TraceContext trace) {
+            this.startTS = startTS;
+            this.trace = trace;
         }
 
         /**
          * Tick
          */
         public void run() {
-            MsgEvent tick = new MsgEvent(MsgEvent.Type.WATCHDOG, region, null, null, "WatchDog timer tick.");
-            tick.setParam("src_region", this.region);
-            tick.setParam("src_agent", this.agent);
-            tick.setParam("src_plugin", this.pluginID);
-            tick.setParam("dst_region", this.region);
-            tick.setParam("dst_agent", this.agent);
-            tick.setParam("runtime", String.valueOf(System.currentTimeMillis() - startTS));
+            Identity current = identity.get();
+            // Identities swapped directly on a shared holder are announced on the next tick
+            announce(current);
+            MsgEvent tick = new MsgEvent(MsgEvent.Type.WATCHDOG, current.getRegion(), null, null, "WatchDog timer tick.");
+            tick.setParam("src_region", current.getRegion());
+            tick.setParam("src_agent", current.getAgent());
+            tick.setParam("src_plugin", current.getPluginID());
+            tick.setParam("dst_region", current.getRegion());
+            tick.setParam("dst_agent", current.getAgent());
+            tick.setParam("runtime", String.valueOf(System.currentTimeMillis() - this.startTS));
             tick.setParam("timestamp", String.valueOf(System.currentTimeMillis()));
-            this.logger.log(tick);
+            this.trace.child().inject(tick);
+            CLogger log = logger;
+            log.log(tick);
+            for (MsgEvent spans : Tracer.getDefault().export(current.getRegion(), current.getAgent(), current.getPluginID()))
+                log.log(spans);
         }
     }
 
+    /**
+     * Identity getter
+     * @return          Identity holder this instance reports from
+     */
+    public SharedIdentity getIdentity() {
+        return identity;
+    }
+
     /**
      * Region identification getter
      * @return          Current region identification
      */
     public String getRegion() {
-        return region;
+        return identity.get().getRegion();
     }
 
     /**
@@ -182,7 +276,7 @@ public class WatchDog {
      * @param region    New region identification
      */
     public void setRegion(String region) {
-        this.region = region;
+        identity.updateRegion(region);
     }
 
     /**
@@ -190,7 +284,7 @@ public class WatchDog {
      * @return          Current agent identification
      */
     public String getAgent() {
-        return agent;
+        return identity.get().getAgent();
     }
 
     /**
@@ -198,7 +292,7 @@ public class WatchDog {
      * @param agent     New agent identification
      */
     public void setAgent(String agent) {
-        this.agent = agent;
+        identity.updateAgent(agent);
     }
 
     /**
@@ -206,7 +300,7 @@ public class WatchDog {
      * @return          Current plugin identification
      */
     public String getPluginID() {
-        return pluginID;
+        return identity.get().getPluginID();
     }
 
     /**
@@ -214,7 +308,7 @@ public class WatchDog {
      * @param pluginID  New plugin identification
      */
     public void setPluginID(String pluginID) {
-        this.pluginID = pluginID;
+        identity.updatePluginID(pluginID);
     }
 
     /**
@@ -0,0 +1,506 @@
+package com.researchworx.cresco.library.messaging;
+
+import com.researchworx.cresco.library.core.Config;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Cresco outbound flow control
+ *
+ * Bounds the number of messages each producer (source agent and plugin) and each {@link MsgEvent.Type} may have
+ * waiting in the outbound channel. Permits are returned when the consumer takes messages through
+ * {@link #take()}, {@link #poll()} or reports them with {@link #consumed(MsgEvent)}, so consumers draining the
+ * channel directly must call the latter. When a send finds no permit, or the channel is full, the per-type
+ * {@link Policy} decides what is shed. Waiting messages are indexed by type and producer, so picking one to shed
+ * does not scan the index; the shed message is removed from the channel and its place and permits are handed to
+ * its replacement.
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public class FlowController {
+    /**
+     * Load-shedding policy applied when a send finds no permit or the channel is full
+     */
+    public enum Policy {
+        /** Reject the new message */
+        REJECT,
+        /** Drop the oldest waiting message of the same type, preferring the same producer */
+        DROP_OLDEST,
+        /** Replace the waiting message of the same type from the same producer */
+        COALESCE
+    }
+
+    /** Default permits per producer */
+    public static final int DEFAULT_PRODUCER_PERMITS = 1000;
+    /** Default permits per message type */
+    public static final int DEFAULT_TYPE_PERMITS = 10000;
+
+    /** Communication channel */
+    private final BlockingQueue<MsgEvent> msgOutQueue;
+    /** Permits per producer */
+    private final int producerPermits;
+    /** Permits by message type ordinal */
+    private final AtomicIntegerArray typePermits;
+    /** Shedding policy by message type ordinal */
+    private final Policy[] policies;
+    /** Waiting messages by message type ordinal */
+    private final AtomicIntegerArray typeInFlight;
+    /** Waiting messages by producer */
+    private final ConcurrentMap<String, AtomicInteger> producerInFlight = new ConcurrentHashMap<>();
+    /** Messages shed by message type ordinal */
+    private final AtomicLongArray shed;
+    /** Messages waiting in the outbound channel by message type ordinal, then by producer, oldest first */
+    private final List<ConcurrentMap<String, ConcurrentLinkedDeque<MsgEvent>>> waiting;
+    /** Sends waiting for permits, in arrival order */
+    private final ConcurrentLinkedQueue<PendingSend> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructor
+     * @param msgOutQueue   Outbound communication channel
+     * @param config        Configuration instance, reads flow_producer_permits, flow_type_permits and
+     *                      flow_&lt;type&gt;_permits / flow_&lt;type&gt;_policy overrides (e.g. flow_kpi_policy)
+     */
+    public FlowController(BlockingQueue<MsgEvent> msgOutQueue, Config config) {
+        this(msgOutQueue, config.getIntegerParam("flow_producer_permits", DEFAULT_PRODUCER_PERMITS),
+                config.getIntegerParam("flow_type_permits", DEFAULT_TYPE_PERMITS));
+        for (MsgEvent.Type type : MsgEvent.Type.values()) {
+            String prefix = "flow_" + type.name().toLowerCase() + "_";
+            Integer permits = config.getIntegerParam(prefix + "permits");
+            if (permits != null)
+                typePermits.set(type.ordinal(), permits);
+            String policy = config.getStringParam(prefix + "policy");
+            if (policy != null) {
+                try {
+                    policies[type.ordinal()] = Policy.valueOf(policy.trim().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    // Keep the default policy
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     * <p>KPI messages default to {@link Policy#DROP_OLDEST}, WATCHDOG ticks to {@link Policy#COALESCE} and
+     * everything else to {@link Policy#REJECT}.</p>
+     * @param msgOutQueue       Outbound communication channel
+     * @param producerPermits   Permits per producer
+     * @param typePermits       Permits per message type
+     */
+    public FlowController(BlockingQueue<MsgEvent> msgOutQueue, int producerPermits, int typePermits) {
+        int types = MsgEvent.Type.values().length;
+        this.msgOutQueue = msgOutQueue;
+        this.producerPermits = producerPermits;
+        this.typePermits = new AtomicIntegerArray(types);
+        this.policies = new Policy[types];
+        this.typeInFlight = new AtomicIntegerArray(types);
+        this.shed = new AtomicLongArray(types);
+        this.waiting = new ArrayList<>(types);
+        for (int i = 0; i < types; i++) {
+            this.waiting.add(new ConcurrentHashMap<String, ConcurrentLinkedDeque<MsgEvent>>());
+            this.typePermits.set(i, typePermits);
+            this.policies[i] = Policy.REJECT;
+        }
+        this.policies[MsgEvent.Type.KPI.ordinal()] = Policy.DROP_OLDEST;
+        this.policies[MsgEvent.Type.WATCHDOG.ordinal()] = Policy.COALESCE;
+    }
+
+    /**
+     * Sends a message if permits are available, applying the type's shedding policy otherwise
+     * @param msg           Message to send
+     * @return              Whether the message was placed in the outbound channel
+     */
+    public boolean trySend(MsgEvent msg) {
+        int type = msg.getMsgType().ordinal();
+        String producer = producerOf(msg);
+        if (acquire(type, producer)) {
+            if (offer(msg, type, producer))
+                return true;
+            release(type, producer);
+        }
+        switch (policies[type]) {
+            case DROP_OLDEST:
+                if (replace(msg, type, producer, false))
+                    return true;
+                break;
+            case COALESCE:
+                if (replace(msg, type, producer, true))
+                    return true;
+                break;
+            default:
+        }
+        shed.incrementAndGet(type);
+        return false;
+    }
+
+    /**
+     * Sends a message once permits are available
+     * @param msg           Message to send
+     * @return              Completes with true once the message is placed in the outbound channel, or with false
+     *                      if cancelled first
+     */
+    public Future<Boolean> sendWhenReady(MsgEvent msg) {
+        PendingSend send = new PendingSend(msg);
+        if (pending.isEmpty() && dispatch(send))
+            return send;
+        pending.add(send);
+        drainPending();
+        return send;
+    }
+
+    /**
+     * Takes the next message from the outbound channel, waiting if necessary, and returns its permits
+     * @return              Next message
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public MsgEvent take() throws InterruptedException {
+        MsgEvent msg = msgOutQueue.take();
+        consumed(msg);
+        return msg;
+    }
+
+    /**
+     * Takes the next message from the outbound channel if there is one, and returns its permits
+     * @return              Next message, null if the channel is empty
+     */
+    public MsgEvent poll() {
+        MsgEvent msg = msgOutQueue.poll();
+        if (msg != null)
+            consumed(msg);
+        return msg;
+    }
+
+    /**
+     * Takes the next message from the outbound channel, waiting up to the given time, and returns its permits
+     * @param timeout       Time to wait
+     * @param unit          Unit of the time to wait
+     * @return              Next message, null if none arrived in time
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public MsgEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+        MsgEvent msg = msgOutQueue.poll(timeout, unit);
+        if (msg != null)
+            consumed(msg);
+        return msg;
+    }
+
+    /**
+     * Returns the permits of a message taken from the outbound channel by other means
+     * @param msg           Message taken from the channel
+     */
+    public void consumed(MsgEvent msg) {
+        int type = msg.getMsgType().ordinal();
+        String producer = producerOf(msg);
+        ConcurrentLinkedDeque<MsgEvent> queued = waiting.get(type).get(producer);
+        // Not indexed any more if a concurrent replace picked it, which then fails to remove it from the channel
+        // and leaves its permits to us
+        if (queued != null)
+            queued.remove(msg);
+        release(type, producer);
+        if (!pending.isEmpty())
+            drainPending();
+    }
+
+    /**
+     * Number of messages shed
+     * @param type          Message type
+     * @return              Messages of the type rejected or dropped since creation
+     */
+    public long getShed(MsgEvent.Type type) {
+        return shed.get(type.ordinal());
+    }
+
+    /**
+     * Number of messages waiting in the outbound channel
+     * @param type          Message type
+     * @return              Messages of the type sent but not yet consumed
+     */
+    public int getInFlight(MsgEvent.Type type) {
+        return typeInFlight.get(type.ordinal());
+    }
+
+    /**
+     * Sets the permits and shedding policy of a message type
+     * @param type          Message type
+     * @param permits       Permits for the type
+     * @param policy        Shedding policy for the type
+     */
+    public void setTypeLimit(MsgEvent.Type type, int permits, Policy policy) {
+        typePermits.set(type.ordinal(), permits);
+        policies[type.ordinal()] = policy;
+    }
+
+    /**
+     * Replaces a waiting message of the same type to make room for a new one
+     * <p>The waiting message is removed from the channel and its permits pass to the new message. If a concurrent
+     * send fills the channel in the meantime, the waiting message is put back at the end of the channel, so the
+     * new message is the one shed.</p>
+     * @param msg           New message
+     * @param type          Type ordinal of the new message
+     * @param producer      Producer of the new message
+     * @param sameProducer  Whether only messages of the same producer may be replaced
+     * @return              Whether the new message took the place of a waiting one
+     */
+    private boolean replace(MsgEvent msg, int type, String producer, boolean sameProducer) {
+        ConcurrentMap<String, ConcurrentLinkedDeque<MsgEvent>> byProducer = waiting.get(type);
+        MsgEvent victim = evict(byProducer.get(producer));
+        String victimProducer = producer;
+        if (victim == null && !sameProducer) {
+            // Another producer's message only frees a type permit, so the producer permit is taken first
+            if (!acquireProducer(producer))
+                return false;
+            for (Map.Entry<String, ConcurrentLinkedDeque<MsgEvent>> entry : byProducer.entrySet()) {
+                if (entry.getKey().equals(producer))
+                    continue;
+                victim = evict(entry.getValue());
+                if (victim != null) {
+                    victimProducer = entry.getKey();
+                    break;
+                }
+            }
+            if (victim == null) {
+                releaseProducer(producer);
+                return false;
+            }
+        }
+        if (victim == null)
+            return false;
+        if (offer(msg, type, producer)) {
+            if (!victimProducer.equals(producer))
+                releaseProducer(victimProducer);
+            shed.incrementAndGet(type);
+            return true;
+        }
+        if (!offer(victim, type, victimProducer)) {
+            release(type, victimProducer);
+            shed.incrementAndGet(type);
+        }
+        if (!victimProducer.equals(producer))
+            releaseProducer(producer);
+        return false;
+    }
+
+    /**
+     * Removes the oldest message of a waiting list from the outbound channel, keeping its permits
+     * @param queued        Waiting messages of a type and producer, may be null
+     * @return              The message removed, null if none is waiting
+     */
+    private MsgEvent evict(ConcurrentLinkedDeque<MsgEvent> queued) {
+        if (queued == null)
+            return null;
+        while (true) {
+            MsgEvent victim = queued.peekFirst();
+            if (victim == null)
+                return null;
+            // Taking it off the index first keeps concurrent sends from picking the same message
+            if (!queued.remove(victim))
+                continue;
+            if (msgOutQueue.remove(victim))
+                return victim;
+            // Taken by a consumer first, which delivers it and returns its permits
+        }
+    }
+
+    /**
+     * Places a message holding its permits in the outbound channel and indexes it
+     * @param msg           Message to place
+     * @param type          Type ordinal of the message
+     * @param producer      Producer of the message
+     * @return              Whether the message was placed
+     */
+    private boolean offer(MsgEvent msg, int type, String producer) {
+        ConcurrentMap<String, ConcurrentLinkedDeque<MsgEvent>> byProducer = waiting.get(type);
+        ConcurrentLinkedDeque<MsgEvent> queued = byProducer.get(producer);
+        if (queued == null) {
+            ConcurrentLinkedDeque<MsgEvent> created = new ConcurrentLinkedDeque<>();
+            queued = byProducer.putIfAbsent(producer, created);
+            if (queued == null)
+                queued = created;
+        }
+        // Indexed before it becomes visible, so a consumer always finds it
+        queued.addLast(msg);
+        if (msgOutQueue.offer(msg))
+            return true;
+        queued.removeLastOccurrence(msg);
+        return false;
+    }
+
+    /**
+     * Attempts to place a pending send in the outbound channel
+     * @param send          Pending send
+     * @return              Whether the message was placed
+     */
+    private boolean dispatch(PendingSend send) {
+        int type = send.msg.getMsgType().ordinal();
+        String producer = producerOf(send.msg);
+        if (!acquire(type, producer))
+            return false;
+        if (!offer(send.msg, type, producer)) {
+            release(type, producer);
+            return false;
+        }
+        send.complete(true);
+        return true;
+    }
+
+    /**
+     * Dispatches pending sends for which permits have become available
+     */
+    private void drainPending() {
+        synchronized (pending) {
+            Iterator<PendingSend> it = pending.iterator();
+            while (it.hasNext()) {
+                PendingSend send = it.next();
+                if (send.isDone() || dispatch(send))
+                    it.remove();
+            }
+        }
+    }
+
+    /**
+     * Takes a type permit and a producer permit
+     * @param type          Type ordinal
+     * @param producer      Producer
+     * @return              Whether both permits were available
+     */
+    private boolean acquire(int type, String producer) {
+        int limit = typePermits.get(type);
+        while (true) {
+            int current = typeInFlight.get(type);
+            if (current >= limit)
+                return false;
+            if (typeInFlight.compareAndSet(type, current, current + 1))
+                break;
+        }
+        if (acquireProducer(producer))
+            return true;
+        typeInFlight.decrementAndGet(type);
+        return false;
+    }
+
+    /**
+     * Takes a producer permit
+     * @param producer      Producer
+     * @return              Whether the permit was available
+     */
+    private boolean acquireProducer(String producer) {
+        AtomicInteger counter = producerInFlight.get(producer);
+        if (counter == null) {
+            AtomicInteger created = new AtomicInteger();
+            counter = producerInFlight.putIfAbsent(producer, created);
+            if (counter == null)
+                counter = created;
+        }
+        while (true) {
+            int current = counter.get();
+            if (current >= producerPermits)
+                return false;
+            if (counter.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Returns a type permit and a producer permit
+     * @param type          Type ordinal
+     * @param producer      Producer
+     */
+    private void release(int type, String producer) {
+        if (typeInFlight.decrementAndGet(type) < 0)
+            typeInFlight.incrementAndGet(type);
+        releaseProducer(producer);
+    }
+
+    /**
+     * Returns a producer permit
+     * @param producer      Producer
+     */
+    private void releaseProducer(String producer) {
+        AtomicInteger counter = producerInFlight.get(producer);
+        if (counter != null && counter.decrementAndGet() < 0)
+            counter.incrementAndGet();
+    }
+
+    /**
+     * Identifies the producer of a message
+     * @param msg           Message
+     * @return              Source agent and plugin of the message
+     */
+    private static String producerOf(MsgEvent msg) {
+        return msg.getParam("src_agent") + "/" + msg.getParam("src_plugin");
+    }
+
+    /**
+     * Send waiting for permits
+     */
+    private class PendingSend implements Future<Boolean> {
+        /** Message to send */
+        final MsgEvent msg;
+        /** Signalled on completion */
+        private final CountDownLatch done = new CountDownLatch(1);
+        /** Outcome */
+        private volatile boolean sent = false;
+        /** Whether the send was cancelled */
+        private volatile boolean cancelled = false;
+
+        PendingSend(MsgEvent msg) {
+            this.msg = msg;
+        }
+
+        void complete(boolean sent) {
+            this.sent = sent;
+            done.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (pending) {
+                if (isDone())
+                    return false;
+                cancelled = true;
+                pending.remove(this);
+                complete(false);
+                return true;
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public Boolean get() throws InterruptedException {
+            done.await();
+            return sent;
+        }
+
+        @Override
+        public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            if (!done.await(timeout, unit))
+                throw new TimeoutException();
+            return sent;
+        }
+    }
+}
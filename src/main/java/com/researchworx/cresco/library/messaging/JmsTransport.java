@@ -0,0 +1,685 @@
+package com.researchworx.cresco.library.messaging;
+
+import com.researchworx.cresco.library.utilities.CLogger;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cresco JMS transport for the outbound channel
+ *
+ * Drains the outbound channel into a JMS broker. A fixed pool of connections is shared by a number of sender
+ * threads, each owning one session and a bounded cache of producers per destination. With a batch size above
+ * one, whatever is waiting in the channel (up to the batch size) is sent in a single transacted session commit;
+ * otherwise messages are sent asynchronously, with ActiveMQ's completion callbacks where available (looked up
+ * at runtime, so other JMS providers work without ActiveMQ on the classpath). A failed batch is retried after
+ * reopening the sender's session; a pooled connection is only replaced once the provider reports it broken, so
+ * one failing sender does not disconnect the others. Failed asynchronous sends go back into the channel.
+ * <p>When a {@link FlowController} guards the channel, it is drained through the controller so the permits of
+ * sent messages are returned.</p>
+ * <p>With more than one sender, messages are no longer delivered in channel order.</p>
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public class JmsTransport {
+    /**
+     * Maps a message onto the name of the queue it is sent to
+     */
+    public interface DestinationResolver {
+        /**
+         * Resolves the destination of a message
+         * @param msg           Message to send
+         * @return              Queue name
+         */
+        String resolve(MsgEvent msg);
+    }
+
+    /**
+     * Receives the outcome of each send
+     */
+    public interface SendCallback {
+        /**
+         * Called once the broker has accepted a message
+         * @param msg           Message sent
+         */
+        void onSuccess(MsgEvent msg);
+
+        /**
+         * Called when a message could not be sent
+         * @param msg           Message that failed
+         * @param e             Cause of the failure
+         */
+        void onFailure(MsgEvent msg, Exception e);
+    }
+
+    /**
+     * Wire encoding of messages
+     */
+    public enum Encoding {
+        /** JSON, as produced by {@link MsgEventJsonCodec} */
+        JSON,
+        /** XML, as produced by {@link MsgEventXmlCodec} */
+        XML
+    }
+
+    /** Time to wait for messages before checking for shutdown (in milliseconds) */
+    private static final long POLL_INTERVAL = 100L;
+    /** Longest back-off between reconnection attempts (in milliseconds) */
+    private static final long MAX_BACKOFF = 10000L;
+    /** Attempts at sending a batch before its messages are reported as failed */
+    private static final int MAX_BATCH_ATTEMPTS = 8;
+    /** Time given to the senders to finish when stopping (in milliseconds) */
+    private static final long STOP_TIMEOUT = 10000L;
+    /** Times a failed asynchronous send is put back into the channel */
+    private static final int MAX_ASYNC_RETRIES = 3;
+    /** ActiveMQ completion callback interface, null if ActiveMQ is not on the classpath */
+    private static final Class<?> ASYNC_CALLBACK = asyncCallbackClass();
+
+    /** Communication channel */
+    private final BlockingQueue<MsgEvent> msgOutQueue;
+    /** Broker connection factory */
+    private final ConnectionFactory connectionFactory;
+    /** Destination resolver */
+    private final DestinationResolver resolver;
+    /** Cresco logger */
+    private final CLogger logger;
+    /** Connection pool, indexed by sender */
+    private Connection[] connections;
+    /** Sender threads */
+    private final List<Thread> senders = new ArrayList<>();
+    /** Whether the transport is running */
+    private volatile boolean running = false;
+
+    /** Number of pooled connections */
+    private int connectionCount = 1;
+    /** Number of sender threads, each owning one session */
+    private int senderCount = 1;
+    /** Messages per transacted batch, 1 for asynchronous non-transacted sends */
+    private int batchSize = 100;
+    /** Producers cached per sender */
+    private int producerCacheSize = 64;
+    /** Wire encoding */
+    private Encoding encoding = Encoding.JSON;
+    /** Outcome receiver, may be null */
+    private volatile SendCallback callback;
+    /** Flow control guarding the channel, null to drain it directly */
+    private volatile FlowController flowController;
+    /** Failed asynchronous sends put back into the channel, by message */
+    private final Map<MsgEvent, Integer> asyncRetries = Collections.synchronizedMap(new WeakHashMap<MsgEvent, Integer>());
+
+    /**
+     * Constructor
+     * @param msgOutQueue       Outbound communication channel to drain
+     * @param connectionFactory Broker connection factory
+     * @param resolver          Destination resolver
+     * @param logger            Logger to use
+     */
+    public JmsTransport(BlockingQueue<MsgEvent> msgOutQueue, ConnectionFactory connectionFactory,
+                        DestinationResolver resolver, CLogger logger) {
+        this.msgOutQueue = msgOutQueue;
+        this.connectionFactory = connectionFactory;
+        this.resolver = resolver;
+        this.logger = logger;
+    }
+
+    /**
+     * Starts draining the outbound channel
+     * @return              This instance
+     */
+    public synchronized JmsTransport start() {
+        if (running) return this;
+        running = true;
+        connections = new Connection[connectionCount];
+        for (int i = 0; i < senderCount; i++) {
+            Thread sender = new Thread(new Sender(i % connectionCount), "JmsTransport-sender-" + i);
+            sender.setDaemon(true);
+            senders.add(sender);
+            sender.start();
+        }
+        return this;
+    }
+
+    /**
+     * Stops draining the outbound channel, messages still waiting remain in the channel
+     * <p>Senders still busy after the stop timeout are interrupted and left to finish on their own.</p>
+     * @return              Whether the transport was running
+     * @throws InterruptedException If interrupted while waiting for the senders to finish
+     */
+    public synchronized boolean stop() throws InterruptedException {
+        if (!running) return false;
+        running = false;
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+        for (Thread sender : senders) {
+            sender.join(Math.max(1L, deadline - System.currentTimeMillis()));
+            if (sender.isAlive()) {
+                logger.error("JmsTransport sender {} did not stop in time", sender.getName());
+                sender.interrupt();
+            }
+        }
+        senders.clear();
+        for (int i = 0; i < connections.length; i++)
+            closeConnection(i, connections[i]);
+        return true;
+    }
+
+    /**
+     * Returns a started connection from the pool, opening it if needed
+     * @param index         Pool slot
+     * @return              The connection
+     * @throws JMSException If the connection could not be opened
+     */
+    private Connection connection(final int index) throws JMSException {
+        synchronized (connections) {
+            if (connections[index] == null) {
+                final Connection connection = connectionFactory.createConnection();
+                connection.setExceptionListener(new ExceptionListener() {
+                    @Override
+                    public void onException(JMSException e) {
+                        logger.error("JmsTransport connection failed: {}", e.getMessage());
+                        closeConnection(index, connection);
+                    }
+                });
+                connection.start();
+                connections[index] = connection;
+            }
+            return connections[index];
+        }
+    }
+
+    /**
+     * Closes a pooled connection, unless it was already replaced
+     * @param index         Pool slot
+     * @param connection    Connection to close
+     */
+    private void closeConnection(int index, Connection connection) {
+        if (connection == null)
+            return;
+        synchronized (connections) {
+            if (connections[index] == connection)
+                connections[index] = null;
+        }
+        try {
+            connection.close();
+        } catch (JMSException e) {
+            logger.debug("closeConnection {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes a message for the wire
+     * @param msg           Message to encode
+     * @return              Encoded message
+     */
+    private String encode(MsgEvent msg) {
+        return encoding == Encoding.XML ? MsgEventCodecs.xml().encode(msg) : MsgEventCodecs.json().encode(msg);
+    }
+
+    /**
+     * Reports a successful send
+     * @param msg           Message sent
+     */
+    private void succeeded(MsgEvent msg) {
+        SendCallback cb = callback;
+        if (cb != null)
+            cb.onSuccess(msg);
+    }
+
+    /**
+     * Reports a failed send
+     * @param msg           Message that failed
+     * @param e             Cause of the failure
+     */
+    private void failed(MsgEvent msg, Exception e) {
+        SendCallback cb = callback;
+        if (cb != null)
+            cb.onFailure(msg, e);
+    }
+
+    /**
+     * Puts a failed asynchronous send back into the channel, reporting it as failed once out of retries
+     * @param msg           Message that failed
+     * @param e             Cause of the failure
+     */
+    private void requeue(MsgEvent msg, Exception e) {
+        Integer retries = asyncRetries.get(msg);
+        int attempt = retries == null ? 1 : retries + 1;
+        if (attempt <= MAX_ASYNC_RETRIES) {
+            FlowController flow = flowController;
+            boolean queued = flow != null ? flow.trySend(msg) : msgOutQueue.offer(msg);
+            if (queued) {
+                asyncRetries.put(msg, attempt);
+                logger.debug("JmsTransport requeued failed send, attempt {}: {}", attempt, e.getMessage());
+                return;
+            }
+        }
+        asyncRetries.remove(msg);
+        failed(msg, e);
+    }
+
+    /**
+     * Returns the ActiveMQ completion callback interface if available
+     * @return              The interface, null if ActiveMQ is not on the classpath
+     */
+    private static Class<?> asyncCallbackClass() {
+        try {
+            return Class.forName("org.apache.activemq.AsyncCallback", false, JmsTransport.class.getClassLoader());
+        } catch (ClassNotFoundException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sender thread, owning one session and its producers
+     */
+    private class Sender implements Runnable {
+        /** Pool slot of the connection used */
+        private final int connectionIndex;
+        /** Connection the session belongs to */
+        private Connection connection;
+        /** Session, null while disconnected */
+        private Session session;
+        /** Producer class the asynchronous send method was looked up on */
+        private Class<?> asyncClass;
+        /** Asynchronous send method of {@link #asyncClass}, null if it has none */
+        private Method asyncSend;
+        /** Producers by queue name, least recently used first */
+        private final LinkedHashMap<String, MessageProducer> producers =
+                new LinkedHashMap<String, MessageProducer>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, MessageProducer> eldest) {
+                        if (size() <= producerCacheSize)
+                            return false;
+                        close(eldest.getValue());
+                        return true;
+                    }
+                };
+
+        Sender(int connectionIndex) {
+            this.connectionIndex = connectionIndex;
+        }
+
+        @Override
+        public void run() {
+            List<MsgEvent> batch = new ArrayList<>(batchSize);
+            long backoff = POLL_INTERVAL;
+            int attempts = 0;
+            while (running || !batch.isEmpty()) {
+                try {
+                    if (batch.isEmpty() && !fill(batch))
+                        continue;
+                    attempts++;
+                    if (session == null)
+                        open();
+                    if (batchSize > 1)
+                        sendTransacted(batch);
+                    else
+                        sendAsync(batch.get(0));
+                    batch.clear();
+                    attempts = 0;
+                    backoff = POLL_INTERVAL;
+                } catch (InterruptedException e) {
+                    abandon(batch, e);
+                    break;
+                } catch (JMSException e) {
+                    logger.error("JmsTransport send failed: {}", e.getMessage());
+                    reset();
+                    if (!running || attempts >= MAX_BATCH_ATTEMPTS) {
+                        abandon(batch, e);
+                        attempts = 0;
+                        if (!running)
+                            break;
+                    }
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException ie) {
+                        abandon(batch, ie);
+                        break;
+                    }
+                    backoff = Math.min(MAX_BACKOFF, backoff * 2);
+                } catch (RuntimeException e) {
+                    // A message the resolver or encoder cannot handle would fail every retry, so give up on it
+                    logger.error("JmsTransport send failed: {}", String.valueOf(e));
+                    reset();
+                    abandon(batch, e);
+                    attempts = 0;
+                }
+            }
+            reset();
+        }
+
+        /**
+         * Reports every message of a batch as failed and empties it
+         * @param batch         Messages given up on
+         * @param e             Cause of the failure
+         */
+        private void abandon(List<MsgEvent> batch, Exception e) {
+            for (MsgEvent msg : batch)
+                failed(msg, e);
+            batch.clear();
+        }
+
+        /**
+         * Waits for the next messages of the channel
+         * @param batch         Batch to fill, up to the batch size
+         * @return              Whether any message arrived
+         * @throws InterruptedException If interrupted while waiting
+         */
+        private boolean fill(List<MsgEvent> batch) throws InterruptedException {
+            FlowController flow = flowController;
+            if (flow == null) {
+                MsgEvent first = msgOutQueue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    return false;
+                batch.add(first);
+                msgOutQueue.drainTo(batch, batchSize - 1);
+                return true;
+            }
+            MsgEvent next = flow.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            while (next != null) {
+                batch.add(next);
+                next = batch.size() < batchSize ? flow.poll() : null;
+            }
+            return !batch.isEmpty();
+        }
+
+        /**
+         * Opens the session of this sender, replacing the pooled connection if it cannot open one
+         * @throws JMSException If the session could not be opened
+         */
+        private void open() throws JMSException {
+            connection = connection(connectionIndex);
+            boolean transacted = batchSize > 1;
+            try {
+                session = connection.createSession(transacted, transacted ? Session.SESSION_TRANSACTED : Session.AUTO_ACKNOWLEDGE);
+            } catch (JMSException e) {
+                // A connection refusing sessions is broken for every sender sharing it
+                closeConnection(connectionIndex, connection);
+                connection = null;
+                throw e;
+            }
+        }
+
+        /**
+         * Sends a batch in one transaction, reporting every message once committed
+         * @param batch         Messages to send
+         * @throws JMSException If the transaction failed, in which case the whole batch is retried
+         */
+        private void sendTransacted(List<MsgEvent> batch) throws JMSException {
+            try {
+                for (MsgEvent msg : batch) {
+                    TextMessage message = session.createTextMessage(encode(msg));
+                    producer(resolver.resolve(msg)).send(message);
+                }
+                session.commit();
+            } catch (JMSException e) {
+                try {
+                    session.rollback();
+                } catch (JMSException re) {
+                    logger.debug("JmsTransport rollback failed: {}", re.getMessage());
+                }
+                throw e;
+            }
+            for (MsgEvent msg : batch)
+                succeeded(msg);
+        }
+
+        /**
+         * Sends a single message without waiting for the broker when the provider supports it
+         * @param msg           Message to send
+         * @throws JMSException If the message could not be handed to the provider
+         */
+        private void sendAsync(final MsgEvent msg) throws JMSException {
+            TextMessage message = session.createTextMessage(encode(msg));
+            MessageProducer producer = producer(resolver.resolve(msg));
+            Method send = asyncSend(producer);
+            if (send == null) {
+                producer.send(message);
+                sent(msg);
+                return;
+            }
+            Object completion = Proxy.newProxyInstance(ASYNC_CALLBACK.getClassLoader(), new Class<?>[] {ASYNC_CALLBACK},
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            switch (method.getName()) {
+                                case "onSuccess":
+                                    sent(msg);
+                                    return null;
+                                case "onException":
+                                    requeue(msg, (Exception) args[0]);
+                                    return null;
+                                case "hashCode":
+                                    return System.identityHashCode(proxy);
+                                case "equals":
+                                    return proxy == args[0];
+                                default:
+                                    return "JmsTransport completion of " + msg;
+                            }
+                        }
+                    });
+            try {
+                send.invoke(producer, message, completion);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof JMSException)
+                    throw (JMSException) e.getCause();
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Reports a successful asynchronous send
+         * @param msg           Message sent
+         */
+        private void sent(MsgEvent msg) {
+            asyncRetries.remove(msg);
+            succeeded(msg);
+        }
+
+        /**
+         * Looks up the ActiveMQ asynchronous send method of a producer
+         * @param producer      Producer to send with
+         * @return              The method, null if the producer has none
+         */
+        private Method asyncSend(MessageProducer producer) {
+            if (ASYNC_CALLBACK == null)
+                return null;
+            if (producer.getClass() != asyncClass) {
+                asyncClass = producer.getClass();
+                try {
+                    asyncSend = asyncClass.getMethod("send", Message.class, ASYNC_CALLBACK);
+                } catch (NoSuchMethodException e) {
+                    asyncSend = null;
+                }
+            }
+            return asyncSend;
+        }
+
+        /**
+         * Returns the cached producer of a queue, creating it if needed
+         * @param queue         Queue name
+         * @return              The producer
+         * @throws JMSException If the producer could not be created
+         */
+        private MessageProducer producer(String queue) throws JMSException {
+            MessageProducer producer = producers.get(queue);
+            if (producer == null) {
+                producer = session.createProducer(session.createQueue(queue));
+                producers.put(queue, producer);
+            }
+            return producer;
+        }
+
+        /**
+         * Closes the session and its producers, leaving the pooled connection to the other senders
+         */
+        private void reset() {
+            for (MessageProducer producer : producers.values())
+                close(producer);
+            producers.clear();
+            if (session != null) {
+                try {
+                    session.close();
+                } catch (JMSException e) {
+                    logger.debug("JmsTransport session close failed: {}", e.getMessage());
+                }
+            }
+            session = null;
+            connection = null;
+        }
+
+        /**
+         * Closes a producer, ignoring failures
+         * @param producer      Producer to close
+         */
+        private void close(MessageProducer producer) {
+            try {
+                producer.close();
+            } catch (JMSException e) {
+                logger.debug("JmsTransport producer close failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Connection pool size getter
+     * @return          Current number of pooled connections
+     */
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * Connection pool size setter, takes effect on the next start
+     * @param connectionCount   New number of pooled connections
+     */
+    public void setConnectionCount(int connectionCount) {
+        if (connectionCount <= 0)
+            throw new IllegalArgumentException("connectionCount must be positive");
+        this.connectionCount = connectionCount;
+    }
+
+    /**
+     * Sender count getter
+     * @return          Current number of sender threads
+     */
+    public int getSenderCount() {
+        return senderCount;
+    }
+
+    /**
+     * Sender count setter, takes effect on the next start
+     * @param senderCount   New number of sender threads
+     */
+    public void setSenderCount(int senderCount) {
+        if (senderCount <= 0)
+            throw new IllegalArgumentException("senderCount must be positive");
+        this.senderCount = senderCount;
+    }
+
+    /**
+     * Batch size getter
+     * @return          Current messages per transacted batch, 1 for asynchronous sends
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Batch size setter, takes effect on the next start
+     * @param batchSize New messages per transacted batch, 1 for asynchronous sends
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("batchSize must be positive");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Producer cache size getter
+     * @return          Current number of producers cached per sender
+     */
+    public int getProducerCacheSize() {
+        return producerCacheSize;
+    }
+
+    /**
+     * Producer cache size setter
+     * @param producerCacheSize New number of producers cached per sender
+     */
+    public void setProducerCacheSize(int producerCacheSize) {
+        this.producerCacheSize = producerCacheSize;
+    }
+
+    /**
+     * Encoding getter
+     * @return          Current wire encoding
+     */
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Encoding setter
+     * @param encoding  New wire encoding
+     */
+    public void setEncoding(Encoding encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Callback getter
+     * @return          Current outcome receiver, null if none
+     */
+    public SendCallback getCallback() {
+        return callback;
+    }
+
+    /**
+     * Callback setter
+     * @param callback  New outcome receiver, null for none
+     */
+    public void setCallback(SendCallback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Flow controller getter
+     * @return          Current flow control guarding the channel, null if none
+     */
+    public FlowController getFlowController() {
+        return flowController;
+    }
+
+    /**
+     * Flow controller setter
+     * @param flowController    Flow control guarding the channel, null to drain it directly
+     */
+    public void setFlowController(FlowController flowController) {
+        this.flowController = flowController;
+    }
+}
@@ -101,6 +101,8 @@ public class MsgEvent {
     }
 
     public void setMsgBody(String msgBody) {
+        if (params == null)
+            params = new HashMap<String, String>();
         params.put("msg", msgBody);
     }
 
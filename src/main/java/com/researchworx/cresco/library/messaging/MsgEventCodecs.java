@@ -0,0 +1,53 @@
+package com.researchworx.cresco.library.messaging;
+
+import java.io.IOException;
+
+/**
+ * Cresco shared message codecs
+ *
+ * Holds one instance of each {@link MsgEvent} codec for the whole JVM, so plugins loaded through a common
+ * class loader share a single set of parsers and buffers instead of each building its own on first use.
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public final class MsgEventCodecs {
+    /** Shared XML codec */
+    private static final MsgEventXmlCodec XML = new MsgEventXmlCodec();
+    /** Shared JSON codec */
+    private static final MsgEventJsonCodec JSON = new MsgEventJsonCodec();
+
+    private MsgEventCodecs() { }
+
+    /**
+     * Shared XML codec getter
+     * @return          The shared XML codec
+     */
+    public static MsgEventXmlCodec xml() {
+        return XML;
+    }
+
+    /**
+     * Shared JSON codec getter
+     * @return          The shared JSON codec
+     */
+    public static MsgEventJsonCodec json() {
+        return JSON;
+    }
+
+    /**
+     * Round-trips a sample message through both codecs so class loading and parser setup happen ahead of the
+     * first real message, e.g. while an agent starts rather than when a plugin sends its first message
+     */
+    public static void prewarm() {
+        MsgEvent sample = new MsgEvent(MsgEvent.Type.INFO, "region", "agent", "plugin", "prewarm");
+        sample.setSrc("region", "agent", "plugin");
+        sample.setDst("region", "agent", "plugin");
+        try {
+            XML.decode(XML.encode(sample));
+            JSON.decode(JSON.encode(sample));
+        } catch (IOException e) {
+            throw new IllegalStateException("Codec prewarm failed", e);
+        }
+    }
+}
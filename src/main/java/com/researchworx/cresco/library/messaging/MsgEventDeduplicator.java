@@ -0,0 +1,230 @@
+package com.researchworx.cresco.library.messaging;
+
+import com.researchworx.cresco.library.core.Config;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Cresco inbound message deduplicator
+ *
+ * Remembers message keys for a sliding time window using a ring of Bloom filters, each covering an equal slice
+ * of the window. Lookups consult every generation and inserts go to the newest; when a slice expires the oldest
+ * generation is cleared and reused, so memory stays fixed regardless of message rate. Being probabilistic, a
+ * small fraction of unique messages may be reported as duplicates, see {@link #getEstimatedFalsePositiveRate()}.
+ *
+ * Messages are keyed by their msg_id parameter, which the library does not assign: senders wanting their
+ * messages deduplicated must set it. Without it the value of the first callId-* parameter is used, which only
+ * identifies a message within one RPC exchange (the call and its return share it); messages carrying neither
+ * are never reported as duplicates.
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public class MsgEventDeduplicator {
+    /** Parameter holding a sender assigned unique message identifier */
+    public static final String PARAM_MSG_ID = "msg_id";
+    /** Prefix of the parameter holding an RPC call identifier */
+    public static final String CALL_ID_PREFIX = "callId-";
+    /** Number of Bloom filter generations covering the window */
+    private static final int GENERATIONS = 4;
+
+    /** Time covered by a single generation (in milliseconds) */
+    private final long sliceMillis;
+    /** Bits per generation, a multiple of 64 */
+    private final int bitCount;
+    /** Hash functions per key */
+    private final int hashCount;
+    /** Bloom filter bits, one array per generation */
+    private final long[][] bits;
+    /** Bits set per generation */
+    private final int[] bitsSet;
+    /** Index of the newest generation */
+    private int current = 0;
+    /** Start of the newest generation's slice (in milliseconds) */
+    private long sliceStart;
+    /** Keys checked */
+    private long checks = 0L;
+    /** Keys reported as duplicates */
+    private long duplicates = 0L;
+
+    /**
+     * Constructor
+     * @param config        Configuration instance, reads dedup_window (milliseconds), dedup_expected and dedup_fpp
+     */
+    public MsgEventDeduplicator(Config config) {
+        this(config.getLongParam("dedup_window", 60000L), config.getIntegerParam("dedup_expected", 100000),
+                config.getDoubleParam("dedup_fpp", 0.001d));
+    }
+
+    /**
+     * Constructor
+     * @param windowMillis      Time a key is remembered for (in milliseconds)
+     * @param expectedPerWindow Expected number of distinct keys within a window
+     * @param fpp               Target false positive probability
+     */
+    public MsgEventDeduplicator(long windowMillis, int expectedPerWindow, double fpp) {
+        if (windowMillis <= 0 || expectedPerWindow <= 0)
+            throw new IllegalArgumentException("windowMillis and expectedPerWindow must be positive");
+        if (fpp <= 0d || fpp >= 1d)
+            throw new IllegalArgumentException("fpp must be between 0 and 1");
+        this.sliceMillis = Math.max(1L, windowMillis / (GENERATIONS - 1));
+        // Lookups query every generation, so each one gets a share of the false positive budget, and each is
+        // sized for a full window since a burst may land entirely within one slice
+        double generationFpp = fpp / GENERATIONS;
+        int perGeneration = expectedPerWindow;
+        double m = -perGeneration * Math.log(generationFpp) / (Math.log(2) * Math.log(2));
+        this.bitCount = (int) Math.min(Integer.MAX_VALUE - 63, (((long) Math.ceil(m) + 63) / 64) * 64);
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / perGeneration * Math.log(2)));
+        this.bits = new long[GENERATIONS][bitCount / 64];
+        this.bitsSet = new int[GENERATIONS];
+        this.sliceStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Checks whether a message was already seen within the window, and records it
+     * @param msg           Message to check
+     * @return              Whether the message is a duplicate, false if it carries no identifier
+     */
+    public boolean isDuplicate(MsgEvent msg) {
+        String key = keyOf(msg);
+        return key != null && isDuplicate(key);
+    }
+
+    /**
+     * Checks whether a key was already seen within the window, and records it
+     * @param key           Key to check
+     * @return              Whether the key is a duplicate
+     */
+    public synchronized boolean isDuplicate(String key) {
+        rotate(System.currentTimeMillis());
+        checks++;
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        boolean seen = false;
+        for (int g = 0; g < GENERATIONS && !seen; g++)
+            seen = contains(bits[g], h1, h2);
+        if (seen) {
+            duplicates++;
+            return true;
+        }
+        long[] newest = bits[current];
+        for (int i = 0; i < hashCount; i++) {
+            int bit = index(h1 + i * h2);
+            long mask = 1L << bit;
+            if ((newest[bit >>> 6] & mask) == 0) {
+                newest[bit >>> 6] |= mask;
+                bitsSet[current]++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Extracts the deduplication key of a message
+     * @param msg           Message
+     * @return              The msg_id parameter, else the value of the first callId parameter found, else null
+     */
+    public static String keyOf(MsgEvent msg) {
+        Map<String, String> params = msg.getParams();
+        if (params == null)
+            return null;
+        String id = params.get(PARAM_MSG_ID);
+        if (id != null)
+            return id;
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (param.getKey().startsWith(CALL_ID_PREFIX))
+                return param.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * Number of keys checked
+     * @return              Keys checked since creation
+     */
+    public synchronized long getChecks() {
+        return checks;
+    }
+
+    /**
+     * Number of duplicates detected
+     * @return              Keys reported as duplicates since creation
+     */
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Estimates the probability that a unique key is currently reported as a duplicate
+     * @return              Estimated false positive probability
+     */
+    public synchronized double getEstimatedFalsePositiveRate() {
+        double unique = 1d;
+        for (int g = 0; g < GENERATIONS; g++)
+            unique *= 1d - Math.pow((double) bitsSet[g] / bitCount, hashCount);
+        return 1d - unique;
+    }
+
+    /**
+     * Clears expired generations
+     * @param now           Current time (in milliseconds)
+     */
+    private void rotate(long now) {
+        long elapsed = (now - sliceStart) / sliceMillis;
+        if (elapsed <= 0)
+            return;
+        int steps = (int) Math.min(GENERATIONS, elapsed);
+        for (int i = 0; i < steps; i++) {
+            current = (current + 1) % GENERATIONS;
+            Arrays.fill(bits[current], 0L);
+            bitsSet[current] = 0;
+        }
+        sliceStart += elapsed * sliceMillis;
+    }
+
+    /**
+     * Checks a Bloom filter generation for a key
+     * @param generation    Bits of the generation
+     * @param h1            First hash of the key
+     * @param h2            Second hash of the key
+     * @return              Whether all bits of the key are set
+     */
+    private boolean contains(long[] generation, int h1, int h2) {
+        for (int i = 0; i < hashCount; i++) {
+            int bit = index(h1 + i * h2);
+            if ((generation[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Maps a combined hash onto a bit position
+     * @param combined      Combined hash
+     * @return              Bit position
+     */
+    private int index(int combined) {
+        return (combined & Integer.MAX_VALUE) % bitCount;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a key, finalized with the MurmurHash3 mixer
+     * @param key           Key to hash
+     * @return              Hash of the key
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
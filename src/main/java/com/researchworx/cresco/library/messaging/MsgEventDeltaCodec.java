@@ -0,0 +1,406 @@
+package com.researchworx.cresco.library.messaging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cresco params-level delta codec
+ *
+ * Optional stateful session codec for a stream of messages between one sender and one receiver, applied before
+ * whatever base encoding carries the messages. The {@link Encoder} replaces the params of each message with the
+ * changes relative to the previous message of the stream, referring to recurring keys and values by dictionary
+ * IDs that both ends assign in the same order; the {@link Decoder} rebuilds the original params. Message type,
+ * region, agent and plugin, as well as the pinned (by default the src_* and dst_*) params, stay in the clear so
+ * routing is unaffected and the receiver can address resynchronization requests back to the sender.
+ * <p>Frames are numbered. A keyframe resets the session and carries every param; one is sent at the start of a
+ * stream, every keyframe interval, and after the receiver asks for it. On a sequence gap the decoder drops frames
+ * until the next keyframe, and {@link Decoder#resyncRequest(MsgEvent)} builds the request to send back so the
+ * sender does not have to wait for the interval. Messages without delta params pass through the decoder
+ * untouched.</p>
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public final class MsgEventDeltaCodec {
+    /** Param carrying the stream ID */
+    public static final String PARAM_STREAM = "delta_stream";
+    /** Param carrying the frame sequence number */
+    public static final String PARAM_SEQ = "delta_seq";
+    /** Param carrying the encoded changes */
+    public static final String PARAM_DELTA = "delta";
+    /** Param marking keyframes */
+    public static final String PARAM_KEYFRAME = "delta_key";
+    /** Action of resynchronization requests */
+    public static final String ACTION_RESYNC = "delta_resync";
+    /** Params kept in the clear by default */
+    private static final List<String> DEFAULT_PINNED = Arrays.asList("src_region", "src_agent", "src_plugin",
+            "dst_region", "dst_agent", "dst_plugin");
+    /** Default number of frames between keyframes */
+    private static final int DEFAULT_KEYFRAME_INTERVAL = 256;
+    /** Default dictionary size limit */
+    private static final int DEFAULT_MAX_ENTRIES = 4096;
+    /** Longest value eligible for the dictionary */
+    private static final int MAX_ENTRY_LENGTH = 128;
+    /** Values seen once remembered per stream, a value entering the dictionary on its second sighting */
+    private static final int MAX_CANDIDATES = 1024;
+    /** Streams tracked by a decoder */
+    private static final int MAX_STREAMS = 1024;
+
+    /** Set operation */
+    private static final char OP_SET = 's';
+    /** Remove operation */
+    private static final char OP_REMOVE = 'r';
+    /** Reference to a dictionary entry */
+    private static final char REF_ENTRY = '#';
+    /** Literal defining the next dictionary entry */
+    private static final char REF_DEFINE = '=';
+    /** Literal not added to the dictionary */
+    private static final char REF_LITERAL = '\'';
+    /** Stand-in for null values */
+    private static final char REF_NULL = '~';
+
+    private MsgEventDeltaCodec() { }
+
+    /**
+     * Sending end of a stream
+     * <p>Frames must reach the decoder in the order they were encoded; instances are thread-safe.</p>
+     */
+    public static class Encoder {
+        /** Stream ID */
+        private final String streamId;
+        /** Params kept in the clear */
+        private final Set<String> pinned;
+        /** Frames between keyframes */
+        private final int keyframeInterval;
+        /** Dictionary size limit */
+        private final int maxEntries;
+        /** Dictionary IDs by string */
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        /** Values seen once since the last keyframe */
+        private final LinkedHashMap<String, Boolean> candidates = new LinkedHashMap<String, Boolean>(64, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_CANDIDATES;
+            }
+        };
+        /** Params of the previous frame */
+        private Map<String, String> previous = new HashMap<>();
+        /** Sequence number of the next frame */
+        private long seq = 0;
+        /** Frames sent since the last keyframe */
+        private int sinceKeyframe = 0;
+        /** Whether the next frame must be a keyframe */
+        private boolean keyframeDue = true;
+
+        /**
+         * Constructor using a random stream ID, the default pinned params and keyframe interval
+         */
+        public Encoder() {
+            this(TraceContext.newId(), DEFAULT_PINNED, DEFAULT_KEYFRAME_INTERVAL, DEFAULT_MAX_ENTRIES);
+        }
+
+        /**
+         * Constructor
+         * @param streamId          Stream ID, unique per sender and receiver pair
+         * @param pinned            Params kept in the clear, e.g. those the transport routes on; the src_* params
+         *                          are needed by the receiver to address resynchronization requests
+         * @param keyframeInterval  Frames between keyframes
+         * @param maxEntries        Dictionary size limit, reset on every keyframe
+         */
+        public Encoder(String streamId, Collection<String> pinned, int keyframeInterval, int maxEntries) {
+            if (keyframeInterval <= 0)
+                throw new IllegalArgumentException("keyframeInterval must be positive");
+            this.streamId = streamId;
+            this.pinned = new HashSet<>(pinned);
+            this.keyframeInterval = keyframeInterval;
+            this.maxEntries = maxEntries;
+        }
+
+        /**
+         * Encodes a message as a frame of the stream
+         * @param msg           Message to encode, left unchanged
+         * @return              The frame to send in its place
+         */
+        public synchronized MsgEvent encode(MsgEvent msg) {
+            Map<String, String> params = msg.getParams() != null ? msg.getParams() : new HashMap<String, String>();
+            boolean keyframe = keyframeDue || sinceKeyframe >= keyframeInterval;
+            if (keyframe) {
+                dictionary.clear();
+                candidates.clear();
+                previous = new HashMap<>();
+                sinceKeyframe = 0;
+                keyframeDue = false;
+            }
+            StringBuilder delta = new StringBuilder();
+            Map<String, String> frameParams = new HashMap<>();
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                String key = param.getKey();
+                String value = param.getValue();
+                if (pinned.contains(key)) {
+                    frameParams.put(key, value);
+                    continue;
+                }
+                if (previous.containsKey(key) && equal(previous.get(key), value))
+                    continue;
+                delta.append(OP_SET);
+                ref(delta, key, true);
+                ref(delta, value, false);
+            }
+            for (String key : previous.keySet()) {
+                if (!params.containsKey(key) && !pinned.contains(key)) {
+                    delta.append(OP_REMOVE);
+                    ref(delta, key, true);
+                }
+            }
+            previous = new HashMap<>(params);
+            sinceKeyframe++;
+            MsgEvent frame = new MsgEvent(msg.getMsgType(), msg.getMsgRegion(), msg.getMsgAgent(), msg.getMsgPlugin(),
+                    frameParams);
+            frame.setParam(PARAM_STREAM, streamId);
+            frame.setParam(PARAM_SEQ, Long.toString(seq++, Character.MAX_RADIX));
+            frame.setParam(PARAM_DELTA, delta.toString());
+            if (keyframe)
+                frame.setParam(PARAM_KEYFRAME, "1");
+            return frame;
+        }
+
+        /**
+         * Applies a resynchronization request from the receiver
+         * @param request       Message received from the receiver
+         * @return              Whether the request was meant for this stream, the next frame then being a keyframe
+         */
+        public synchronized boolean handleResync(MsgEvent request) {
+            if (!ACTION_RESYNC.equals(request.getParam("action")) || !streamId.equals(request.getParam(PARAM_STREAM)))
+                return false;
+            keyframeDue = true;
+            return true;
+        }
+
+        /**
+         * Forces the next frame to be a keyframe
+         */
+        public synchronized void resync() {
+            keyframeDue = true;
+        }
+
+        /**
+         * Stream ID getter
+         * @return          Stream ID
+         */
+        public String getStreamId() {
+            return streamId;
+        }
+
+        /**
+         * Writes a reference to a string, defining a dictionary entry for keys and recurring values
+         * @param sb            Destination buffer
+         * @param value         String to refer to, may be null
+         * @param key           Whether the string is a param key
+         */
+        private void ref(StringBuilder sb, String value, boolean key) {
+            if (value == null) {
+                sb.append(REF_NULL);
+                return;
+            }
+            Integer id = dictionary.get(value);
+            if (id != null) {
+                sb.append(REF_ENTRY).append(Integer.toString(id, Character.MAX_RADIX)).append('.');
+                return;
+            }
+            boolean define = dictionary.size() < maxEntries && value.length() <= MAX_ENTRY_LENGTH
+                    && (key || candidates.remove(value) != null);
+            if (define) {
+                dictionary.put(value, dictionary.size());
+                sb.append(REF_DEFINE);
+            } else {
+                if (!key && value.length() <= MAX_ENTRY_LENGTH)
+                    candidates.put(value, Boolean.TRUE);
+                sb.append(REF_LITERAL);
+            }
+            sb.append(value.length()).append(':').append(value);
+        }
+    }
+
+    /**
+     * Receiving end of one or more streams
+     * <p>Instances are thread-safe.</p>
+     */
+    public static class Decoder {
+        /** Sessions by stream ID, least recently used first */
+        private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                return size() > MAX_STREAMS;
+            }
+        };
+        /** Frames dropped while waiting for a keyframe */
+        private long dropped = 0;
+
+        /**
+         * Decodes a frame
+         * @param frame         Frame received, messages without delta params are returned as is
+         * @return              The original message, null if the stream has to be resynchronized first
+         */
+        public synchronized MsgEvent decode(MsgEvent frame) {
+            String streamId = frame.getParam(PARAM_STREAM);
+            String delta = frame.getParam(PARAM_DELTA);
+            String seqParam = frame.getParam(PARAM_SEQ);
+            if (streamId == null || delta == null || seqParam == null)
+                return frame;
+            long seq;
+            try {
+                seq = Long.parseLong(seqParam, Character.MAX_RADIX);
+            } catch (NumberFormatException e) {
+                dropped++;
+                return null;
+            }
+            Session session = sessions.get(streamId);
+            if ("1".equals(frame.getParam(PARAM_KEYFRAME))) {
+                session = new Session();
+                sessions.put(streamId, session);
+            } else if (session == null || !session.synced || seq != session.nextSeq) {
+                if (session != null)
+                    session.synced = false;
+                dropped++;
+                return null;
+            }
+            Map<String, String> params = new HashMap<>(session.params);
+            try {
+                session.apply(delta, params);
+            } catch (RuntimeException e) {
+                // A malformed frame leaves the dictionary out of step with the sender until the next keyframe
+                session.synced = false;
+                dropped++;
+                return null;
+            }
+            session.params = params;
+            session.nextSeq = seq + 1;
+            Map<String, String> restored = new HashMap<>(params);
+            for (Map.Entry<String, String> param : frame.getParams().entrySet()) {
+                String key = param.getKey();
+                if (!key.equals(PARAM_STREAM) && !key.equals(PARAM_SEQ) && !key.equals(PARAM_DELTA)
+                        && !key.equals(PARAM_KEYFRAME))
+                    restored.put(key, param.getValue());
+            }
+            return new MsgEvent(frame.getMsgType(), frame.getMsgRegion(), frame.getMsgAgent(), frame.getMsgPlugin(),
+                    restored);
+        }
+
+        /**
+         * Builds the request asking the sender of a frame for a keyframe, addressed from the frame's src_* params
+         * @param frame         Frame that could not be decoded
+         * @return              The request to send back, null if the frame is not part of a stream
+         */
+        public MsgEvent resyncRequest(MsgEvent frame) {
+            String streamId = frame.getParam(PARAM_STREAM);
+            if (streamId == null)
+                return null;
+            MsgEvent request = new MsgEvent(MsgEvent.Type.CONFIG, frame.getMsgRegion(), frame.getMsgAgent(),
+                    frame.getMsgPlugin(), "Delta stream resynchronization");
+            request.setParam("src_region", frame.getParam("dst_region"));
+            request.setParam("src_agent", frame.getParam("dst_agent"));
+            request.setParam("src_plugin", frame.getParam("dst_plugin"));
+            request.setParam("dst_region", frame.getParam("src_region"));
+            request.setParam("dst_agent", frame.getParam("src_agent"));
+            request.setParam("dst_plugin", frame.getParam("src_plugin"));
+            request.setParam("action", ACTION_RESYNC);
+            request.setParam(PARAM_STREAM, streamId);
+            return request;
+        }
+
+        /**
+         * Dropped frame count getter
+         * @return          Current number of frames dropped while waiting for a keyframe
+         */
+        public synchronized long getDropped() {
+            return dropped;
+        }
+    }
+
+    /**
+     * Decoder state of one stream
+     */
+    private static final class Session {
+        /** Dictionary entries by ID */
+        private final List<String> dictionary = new ArrayList<>();
+        /** Params of the previous frame */
+        private Map<String, String> params = new HashMap<>();
+        /** Sequence number expected next */
+        private long nextSeq;
+        /** Whether the session follows the sender */
+        private boolean synced = true;
+        /** Parse position in the current delta */
+        private int pos;
+
+        /**
+         * Applies the changes of a frame
+         * @param delta         Encoded changes
+         * @param params        Params to update
+         * @throws IllegalArgumentException If the changes are malformed or refer to unknown entries
+         */
+        void apply(String delta, Map<String, String> params) {
+            pos = 0;
+            while (pos < delta.length()) {
+                char op = delta.charAt(pos++);
+                if (op == OP_SET) {
+                    String key = ref(delta);
+                    params.put(key, ref(delta));
+                } else if (op == OP_REMOVE) {
+                    params.remove(ref(delta));
+                } else {
+                    throw new IllegalArgumentException("Unknown delta operation " + op);
+                }
+            }
+        }
+
+        /**
+         * Reads a reference to a string
+         * @param delta         Encoded changes
+         * @return              The string, possibly null
+         * @throws IllegalArgumentException If the reference is malformed or unknown
+         */
+        private String ref(String delta) {
+            char kind = delta.charAt(pos++);
+            if (kind == REF_NULL)
+                return null;
+            if (kind == REF_ENTRY) {
+                int end = delta.indexOf('.', pos);
+                int id = Integer.parseInt(delta.substring(pos, end), Character.MAX_RADIX);
+                pos = end + 1;
+                if (id < 0 || id >= dictionary.size())
+                    throw new IllegalArgumentException("Unknown dictionary entry " + id);
+                return dictionary.get(id);
+            }
+            if (kind != REF_DEFINE && kind != REF_LITERAL)
+                throw new IllegalArgumentException("Unknown delta reference " + kind);
+            int colon = delta.indexOf(':', pos);
+            int length = Integer.parseInt(delta.substring(pos, colon));
+            String value = delta.substring(colon + 1, colon + 1 + length);
+            pos = colon + 1 + length;
+            if (kind == REF_DEFINE)
+                dictionary.add(value);
+            return value;
+        }
+    }
+
+    /**
+     * Null-safe string comparison
+     * @param a             First string
+     * @param b             Second string
+     * @return              Whether both are null or equal
+     */
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
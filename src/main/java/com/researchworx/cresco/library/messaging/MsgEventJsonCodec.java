@@ -0,0 +1,202 @@
+package com.researchworx.cresco.library.messaging;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cresco streaming JSON codec for {@link MsgEvent}
+ *
+ * Produces the same document shape as serializing a {@link MsgEvent} with Gson, but writes directly through a
+ * {@link JsonWriter} into a per-thread reusable buffer instead of reflecting over the object. Instances are
+ * thread-safe.
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public class MsgEventJsonCodec {
+    /** Largest buffer (in characters) kept for reuse between calls */
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+    /** Per-thread output buffer */
+    private final ThreadLocal<StringBuilderWriter> buffers = new ThreadLocal<StringBuilderWriter>() {
+        @Override
+        protected StringBuilderWriter initialValue() {
+            return new StringBuilderWriter();
+        }
+    };
+
+    /**
+     * Serializes a message to JSON
+     * @param msg           Message to serialize
+     * @return              JSON representation of the message
+     */
+    public String encode(MsgEvent msg) {
+        StringBuilderWriter buffer = buffers.get();
+        buffer.reset();
+        try {
+            encode(msg, buffer);
+        } catch (IOException e) {
+            // StringBuilderWriter never throws
+            throw new IllegalStateException(e);
+        }
+        String json = buffer.toString();
+        if (buffer.capacity() > MAX_RETAINED_BUFFER)
+            buffers.remove();
+        return json;
+    }
+
+    /**
+     * Serializes a message to JSON
+     * @param msg           Message to serialize
+     * @param out           Destination of the JSON representation
+     * @throws IOException  If the destination could not be written
+     */
+    public void encode(MsgEvent msg, Writer out) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        if (msg.getMsgType() != null)
+            writer.name("msgType").value(msg.getMsgType().name());
+        if (msg.getMsgRegion() != null)
+            writer.name("msgRegion").value(msg.getMsgRegion());
+        if (msg.getMsgAgent() != null)
+            writer.name("msgAgent").value(msg.getMsgAgent());
+        if (msg.getMsgPlugin() != null)
+            writer.name("msgPlugin").value(msg.getMsgPlugin());
+        Map<String, String> params = msg.getParams();
+        if (params != null) {
+            writer.name("params").beginObject();
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                // Gson leaves out null entries, and so does this codec
+                if (param.getValue() != null)
+                    writer.name(param.getKey()).value(param.getValue());
+            }
+            writer.endObject();
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * Deserializes a message from JSON
+     * @param json          JSON representation of the message
+     * @return              The message
+     * @throws IOException  If the document is not a valid message
+     */
+    public MsgEvent decode(String json) throws IOException {
+        return decode(new StringReader(json));
+    }
+
+    /**
+     * Deserializes a message from JSON
+     * @param in            Source of the JSON representation
+     * @return              The message
+     * @throws IOException  If the source could not be read or is not a valid message
+     */
+    public MsgEvent decode(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        MsgEvent msg = new MsgEvent();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "msgType":
+                    String type = reader.nextString();
+                    try {
+                        msg.setMsgType(MsgEvent.Type.valueOf(type));
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException("Unknown message type: " + type);
+                    }
+                    break;
+                case "msgRegion":
+                    msg.setMsgRegion(reader.nextString());
+                    break;
+                case "msgAgent":
+                    msg.setMsgAgent(reader.nextString());
+                    break;
+                case "msgPlugin":
+                    msg.setMsgPlugin(reader.nextString());
+                    break;
+                case "params":
+                    Map<String, String> params = new HashMap<>();
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String key = reader.nextName();
+                        if (reader.peek() == JsonToken.NULL) {
+                            reader.nextNull();
+                            params.put(key, null);
+                        } else {
+                            params.put(key, reader.nextString());
+                        }
+                    }
+                    reader.endObject();
+                    msg.setParams(params);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (msg.getParams() == null)
+            msg.setParams(new HashMap<String, String>());
+        return msg;
+    }
+
+    /**
+     * Unsynchronized, resettable {@link Writer} over a {@link StringBuilder}
+     */
+    private static class StringBuilderWriter extends Writer {
+        /** Backing buffer */
+        private final StringBuilder sb = new StringBuilder(256);
+
+        void reset() {
+            sb.setLength(0);
+        }
+
+        int capacity() {
+            return sb.capacity();
+        }
+
+        @Override
+        public void write(int c) {
+            sb.append((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            sb.append(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            sb.append(str, off, off + len);
+        }
+
+        @Override
+        public Writer append(CharSequence csq) {
+            sb.append(csq);
+            return this;
+        }
+
+        @Override
+        public void flush() { }
+
+        @Override
+        public void close() { }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+}
@@ -1,16 +1,20 @@
 package com.researchworx.cresco.library.messaging;
 
 import java.util.*;
+import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.adapters.XmlAdapter;
 
 class MsgEventParamsAdapter extends XmlAdapter<MsgEventParamsAdapter.AdaptedMap, Map<String, String>> {
 
     static class AdaptedMap {
+        @XmlElement
         List<Entry> entry = new ArrayList<Entry>();
     }
 
     private static class Entry {
+        @XmlElement
         String key;
+        @XmlElement
         String value;
     }
 
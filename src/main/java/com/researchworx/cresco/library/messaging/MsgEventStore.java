@@ -0,0 +1,862 @@
+package com.researchworx.cresco.library.messaging;
+
+import com.researchworx.cresco.library.core.Config;
+import com.researchworx.cresco.library.utilities.CLogger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cresco local event store
+ *
+ * Bounded, append-only store of recent messages (typically LOG and KPI) kept on the local disk, so they can be
+ * queried without pulling them back from the controller. Messages are appended to fixed-size memory-mapped
+ * segment files, each with a sparse time index and in-memory postings per message type, log level and source
+ * plugin. Whole segments are discarded once the store exceeds its size limit or their newest message exceeds
+ * the age limit. Events are keyed by the time they were appended; indexes are rebuilt from the segment files
+ * when a store is reopened.
+ * <p>Appends are serialized; queries run concurrently with appends and see every message appended before
+ * they reached its segment.</p>
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public class MsgEventStore implements Closeable {
+    /**
+     * Receives the messages matching a query
+     */
+    public interface Visitor {
+        /**
+         * Called for each matching message, oldest first
+         * @param timestamp     Time the message was appended (in milliseconds)
+         * @param msg           Matching message
+         * @return              Whether to continue the scan
+         */
+        boolean visit(long timestamp, MsgEvent msg);
+    }
+
+    /**
+     * Range-scan query, unrestricted by default
+     */
+    public static class Query {
+        /** Oldest append time included (in milliseconds) */
+        private long from = Long.MIN_VALUE;
+        /** Newest append time included (in milliseconds) */
+        private long to = Long.MAX_VALUE;
+        /** Message type to match, null for any */
+        private MsgEvent.Type type;
+        /** Log level to match, null for any */
+        private byte[] level;
+        /** Source plugin to match, null for any */
+        private byte[] plugin;
+        /** Maximum number of messages returned */
+        private int limit = Integer.MAX_VALUE;
+
+        /**
+         * Restricts the query to messages appended at or after a time
+         * @param from      Oldest append time included (in milliseconds)
+         * @return          This query
+         */
+        public Query from(long from) {
+            this.from = from;
+            return this;
+        }
+
+        /**
+         * Restricts the query to messages appended at or before a time
+         * @param to        Newest append time included (in milliseconds)
+         * @return          This query
+         */
+        public Query to(long to) {
+            this.to = to;
+            return this;
+        }
+
+        /**
+         * Restricts the query to recently appended messages
+         * @param millis    Age of the oldest message included (in milliseconds)
+         * @return          This query
+         */
+        public Query last(long millis) {
+            this.from = System.currentTimeMillis() - millis;
+            return this;
+        }
+
+        /**
+         * Restricts the query to a message type
+         * @param type      Message type to match
+         * @return          This query
+         */
+        public Query type(MsgEvent.Type type) {
+            this.type = type;
+            return this;
+        }
+
+        /**
+         * Restricts the query to a log level, as carried by the log_level parameter
+         * @param level     Log level to match, e.g. Error
+         * @return          This query
+         */
+        public Query level(String level) {
+            this.level = level != null ? level.getBytes(StandardCharsets.UTF_8) : null;
+            return this;
+        }
+
+        /**
+         * Restricts the query to a source plugin
+         * @param plugin    Source plugin to match
+         * @return          This query
+         */
+        public Query plugin(String plugin) {
+            this.plugin = plugin != null ? plugin.getBytes(StandardCharsets.UTF_8) : null;
+            return this;
+        }
+
+        /**
+         * Limits the number of messages returned
+         * @param limit     Maximum number of messages returned
+         * @return          This query
+         */
+        public Query limit(int limit) {
+            this.limit = limit;
+            return this;
+        }
+    }
+
+    /** Segment file name suffix */
+    private static final String SEGMENT_SUFFIX = ".seg";
+    /** Fixed part of a record header: length, time, type, level length and plugin length */
+    private static final int RECORD_HEADER = 4 + 8 + 1 + 1 + 2;
+    /** Type byte of messages without a type */
+    private static final byte NO_TYPE = -1;
+    /** Bytes appended between two entries of the sparse time index */
+    private static final int INDEX_INTERVAL = 4096;
+    /** Default segment size (in bytes) */
+    private static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    /** Default total size limit (in bytes) */
+    private static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    /** Default age limit (in milliseconds) */
+    private static final long DEFAULT_MAX_AGE = 60L * 60 * 1000;
+
+    /** Directory holding the segment files */
+    private final File directory;
+    /** Size of each segment file (in bytes) */
+    private final int segmentSize;
+    /** Total size limit (in bytes) */
+    private final long maxBytes;
+    /** Age limit (in milliseconds), 0 for none */
+    private final long maxAge;
+    /** Cresco logger */
+    private final CLogger logger;
+    /** Segments, oldest first; replaced on every change so queries can work on a snapshot */
+    private volatile Segment[] segments = new Segment[0];
+    /** Sequence number of the next segment file */
+    private long nextSegment;
+    /** Append time of the newest message */
+    private long lastTime = Long.MIN_VALUE;
+    /** Whether an append is in progress, so messages logged while appending are not appended in turn */
+    private boolean appending = false;
+    /** Whether the store was closed */
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor
+     * <p>Reads store_path, store_segment_size, store_max_bytes and store_max_age (in milliseconds) from the
+     * configuration.</p>
+     * @param config        Configuration to use
+     * @param logger        Logger to use
+     * @throws IOException  If the store directory could not be opened
+     */
+    public MsgEventStore(Config config, CLogger logger) throws IOException {
+        this(new File(config.getStringParam("store_path", "events")),
+                config.getIntegerParam("store_segment_size", DEFAULT_SEGMENT_SIZE),
+                config.getLongParam("store_max_bytes", DEFAULT_MAX_BYTES),
+                config.getLongParam("store_max_age", DEFAULT_MAX_AGE), logger);
+    }
+
+    /**
+     * Constructor
+     * @param directory     Directory holding the segment files, created if needed
+     * @param logger        Logger to use
+     * @throws IOException  If the store directory could not be opened
+     */
+    public MsgEventStore(File directory, CLogger logger) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE, logger);
+    }
+
+    /**
+     * Constructor
+     * @param directory     Directory holding the segment files, created if needed
+     * @param segmentSize   Size of each segment file (in bytes)
+     * @param maxBytes      Total size limit (in bytes)
+     * @param maxAge        Age limit (in milliseconds), 0 for none
+     * @param logger        Logger to use
+     * @throws IOException  If the store directory could not be opened
+     */
+    public MsgEventStore(File directory, int segmentSize, long maxBytes, long maxAge, CLogger logger)
+            throws IOException {
+        if (segmentSize < RECORD_HEADER + 4)
+            throw new IllegalArgumentException("segmentSize too small");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+        this.logger = logger;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create store directory " + directory);
+        recover();
+    }
+
+    /**
+     * Appends a message to the store
+     * @param msg           Message to store
+     * @return              Whether the message was stored
+     */
+    public synchronized boolean append(MsgEvent msg) {
+        if (closed || appending)
+            return false;
+        appending = true;
+        try {
+            return write(msg);
+        } finally {
+            appending = false;
+        }
+    }
+
+    /**
+     * Writes a message to the active segment
+     * @param msg           Message to store
+     * @return              Whether the message was stored
+     */
+    private boolean write(MsgEvent msg) {
+        byte[] level = bytes(msg.getParam("log_level"), Byte.MAX_VALUE);
+        byte[] plugin = bytes(pluginOf(msg), Short.MAX_VALUE);
+        byte[] payload = MsgEventCodecs.json().encode(msg).getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_HEADER + level.length + plugin.length + payload.length;
+        // Every segment keeps room for a zero length marking its end
+        if (length > segmentSize - 4) {
+            logger.error("MsgEventStore message of {} bytes exceeds the segment size", length);
+            return false;
+        }
+        long time = Math.max(System.currentTimeMillis(), lastTime);
+        Segment[] current = segments;
+        Segment active = current.length > 0 ? current[current.length - 1] : null;
+        try {
+            if (active == null || active.limit + length > active.capacity - 4)
+                active = roll();
+        } catch (IOException e) {
+            logger.error("MsgEventStore could not create a segment: {}", e.getMessage());
+            return false;
+        }
+        int offset = active.limit;
+        ByteBuffer buffer = active.buffer;
+        buffer.putLong(offset + 4, time);
+        buffer.put(offset + 12, msg.getMsgType() != null ? (byte) msg.getMsgType().ordinal() : NO_TYPE);
+        buffer.put(offset + 13, (byte) level.length);
+        buffer.putShort(offset + 14, (short) plugin.length);
+        int position = offset + RECORD_HEADER;
+        position = put(buffer, position, level);
+        position = put(buffer, position, plugin);
+        put(buffer, position, payload);
+        // The length goes last, so a record torn by a crash reads as the end of the segment
+        buffer.putInt(offset, length);
+        active.index(offset, time, msg.getMsgType(), msg.getParam("log_level"), pluginOf(msg));
+        active.limit = offset + length;
+        lastTime = time;
+        expire(time);
+        return true;
+    }
+
+    /**
+     * Scans the messages matching a query, oldest first
+     * @param query         Query to run
+     * @param visitor       Receiver of the matching messages
+     * @return              Number of messages visited
+     */
+    public int scan(Query query, Visitor visitor) {
+        long from = query.from;
+        if (maxAge > 0)
+            from = Math.max(from, System.currentTimeMillis() - maxAge);
+        int visited = 0;
+        for (Segment segment : segments) {
+            // Discarded segments are unmapped once the last scan using them is done
+            if (!segment.acquire())
+                continue;
+            try {
+                int limit = segment.limit;
+                if (limit == 0 || segment.lastTime < from)
+                    continue;
+                if (segment.firstTime > query.to || visited >= query.limit)
+                    break;
+                ByteBuffer buffer = segment.buffer.duplicate();
+                Postings postings = segment.postings(query);
+                if (postings != null) {
+                    int size = postings.size;
+                    int[] offsets = postings.offsets;
+                    for (int i = lowerBound(buffer, offsets, size, from); i < size; i++) {
+                        int offset = offsets[i];
+                        if (buffer.getLong(offset + 4) > query.to)
+                            return visited;
+                        if (!matches(buffer, offset, query))
+                            continue;
+                        if (visited >= query.limit || !visit(buffer, offset, visitor))
+                            return visited;
+                        visited++;
+                    }
+                } else {
+                    for (int offset = segment.seek(from); offset < limit; offset += buffer.getInt(offset)) {
+                        long time = buffer.getLong(offset + 4);
+                        if (time > query.to)
+                            return visited;
+                        if (time < from || !matches(buffer, offset, query))
+                            continue;
+                        if (visited >= query.limit || !visit(buffer, offset, visitor))
+                            return visited;
+                        visited++;
+                    }
+                }
+            } finally {
+                segment.release();
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Returns the messages matching a query, oldest first
+     * @param query         Query to run
+     * @return              Matching messages
+     */
+    public List<MsgEvent> query(Query query) {
+        final List<MsgEvent> results = new ArrayList<>();
+        scan(query, new Visitor() {
+            @Override
+            public boolean visit(long timestamp, MsgEvent msg) {
+                results.add(msg);
+                return true;
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Writes appended messages through to the segment files
+     */
+    public void flush() {
+        Segment[] current = segments;
+        if (current.length > 0 && current[current.length - 1].acquire()) {
+            try {
+                current[current.length - 1].buffer.force();
+            } finally {
+                current[current.length - 1].release();
+            }
+        }
+    }
+
+    /**
+     * Flushes and closes the store, further appends are refused
+     */
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        flush();
+        closed = true;
+        Segment[] current = segments;
+        segments = new Segment[0];
+        for (Segment segment : current)
+            segment.release();
+    }
+
+    /**
+     * Segment count getter
+     * @return          Current number of segment files
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Size getter
+     * @return          Current number of bytes used by stored messages
+     */
+    public long getSize() {
+        long size = 0;
+        for (Segment segment : segments)
+            size += segment.limit;
+        return size;
+    }
+
+    /**
+     * Reopens the segment files left in the store directory and rebuilds their indexes
+     * @throws IOException  If a segment file could not be opened
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null)
+            throw new IOException("Could not list store directory " + directory);
+        List<Long> sequences = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX))
+                continue;
+            try {
+                sequences.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                // Not one of ours
+            }
+        }
+        Long[] sorted = sequences.toArray(new Long[sequences.size()]);
+        Arrays.sort(sorted);
+        List<Segment> recovered = new ArrayList<>();
+        for (long sequence : sorted) {
+            Segment segment = new Segment(segmentFile(sequence), 0);
+            ByteBuffer buffer = segment.buffer;
+            int offset = 0;
+            while (offset + RECORD_HEADER <= segment.capacity) {
+                int length = buffer.getInt(offset);
+                if (length < RECORD_HEADER || offset + length > segment.capacity)
+                    break;
+                long time = buffer.getLong(offset + 4);
+                byte type = buffer.get(offset + 12);
+                int levelLength = buffer.get(offset + 13);
+                String level = string(buffer, offset + RECORD_HEADER, levelLength);
+                String plugin = string(buffer, offset + RECORD_HEADER + levelLength, buffer.getShort(offset + 14));
+                MsgEvent.Type[] types = MsgEvent.Type.values();
+                segment.index(offset, time, type >= 0 && type < types.length ? types[type] : null, level, plugin);
+                offset += length;
+                lastTime = Math.max(lastTime, time);
+            }
+            segment.limit = offset;
+            recovered.add(segment);
+            nextSegment = sequence + 1;
+        }
+        segments = recovered.toArray(new Segment[recovered.size()]);
+        if (recovered.size() > 0)
+            logger.info("MsgEventStore recovered {} segments from {}", recovered.size(), directory);
+        expire(System.currentTimeMillis());
+    }
+
+    /**
+     * Starts a new segment, discarding the oldest ones beyond the size limit
+     * @return              The new active segment
+     * @throws IOException  If the segment file could not be created
+     */
+    private Segment roll() throws IOException {
+        long sequence = nextSegment++;
+        Segment segment = new Segment(segmentFile(sequence), segmentSize);
+        Segment[] current = segments;
+        if (current.length > 0)
+            current[current.length - 1].buffer.force();
+        int keep = current.length;
+        while (keep > 0 && (long) (keep + 1) * segmentSize > maxBytes)
+            keep--;
+        Segment[] next = new Segment[keep + 1];
+        System.arraycopy(current, current.length - keep, next, 0, keep);
+        next[keep] = segment;
+        segments = next;
+        for (int i = 0; i < current.length - keep; i++)
+            delete(current[i]);
+        return segment;
+    }
+
+    /**
+     * Discards the segments whose newest message exceeds the age limit, keeping the active segment
+     * @param now           Current time (in milliseconds)
+     */
+    private void expire(long now) {
+        if (maxAge <= 0)
+            return;
+        Segment[] current = segments;
+        int drop = 0;
+        while (drop < current.length - 1 && current[drop].lastTime < now - maxAge)
+            drop++;
+        if (drop == 0)
+            return;
+        segments = Arrays.copyOfRange(current, drop, current.length);
+        for (int i = 0; i < drop; i++)
+            delete(current[i]);
+    }
+
+    /**
+     * Deletes the file of a discarded segment
+     * <p>The mapping is released once no query is using the segment any more, so queries still holding it
+     * can finish.</p>
+     * @param segment       Segment to delete
+     */
+    private void delete(Segment segment) {
+        segment.release();
+        if (!segment.file.delete())
+            logger.error("MsgEventStore could not delete {}", segment.file);
+    }
+
+    /**
+     * Releases the mapping of a buffer right away instead of when it is garbage collected, keeping the file
+     * from occupying disk space after it is deleted
+     * @param buffer        Mapped buffer, never to be accessed again
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Fall back to the Java 8 cleaner
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null)
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Left to the garbage collector
+        }
+    }
+
+    /**
+     * Returns the file of a segment
+     * @param sequence      Segment sequence number
+     * @return              The segment file
+     */
+    private File segmentFile(long sequence) {
+        return new File(directory, String.format("%020d%s", sequence, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Decodes a record and hands it to a visitor
+     * @param buffer        Segment buffer
+     * @param offset        Record offset
+     * @param visitor       Receiver of the message
+     * @return              Whether to continue the scan
+     */
+    private boolean visit(ByteBuffer buffer, int offset, Visitor visitor) {
+        int length = buffer.getInt(offset);
+        int payload = RECORD_HEADER + buffer.get(offset + 13) + buffer.getShort(offset + 14);
+        String json = string(buffer, offset + payload, length - payload);
+        try {
+            return visitor.visit(buffer.getLong(offset + 4), MsgEventCodecs.json().decode(json));
+        } catch (IOException e) {
+            logger.error("MsgEventStore skipped an unreadable record: {}", e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Checks a record against the type, level and plugin of a query
+     * @param buffer        Segment buffer
+     * @param offset        Record offset
+     * @param query         Query to match
+     * @return              Whether the record matches
+     */
+    private static boolean matches(ByteBuffer buffer, int offset, Query query) {
+        if (query.type != null && buffer.get(offset + 12) != (byte) query.type.ordinal())
+            return false;
+        int levelLength = buffer.get(offset + 13);
+        if (query.level != null && !equal(buffer, offset + RECORD_HEADER, levelLength, query.level))
+            return false;
+        return query.plugin == null
+                || equal(buffer, offset + RECORD_HEADER + levelLength, buffer.getShort(offset + 14), query.plugin);
+    }
+
+    /**
+     * Finds the first posting appended at or after a time
+     * @param buffer        Segment buffer
+     * @param offsets       Record offsets, in append order
+     * @param size          Number of offsets
+     * @param from          Oldest append time included (in milliseconds)
+     * @return              Index of the first posting at or after the time, size if none
+     */
+    private static int lowerBound(ByteBuffer buffer, int[] offsets, int size, long from) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (buffer.getLong(offsets[mid] + 4) < from)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Compares bytes of a buffer with an array
+     * @param buffer        Buffer to read
+     * @param offset        Offset of the bytes in the buffer
+     * @param length        Number of bytes in the buffer
+     * @param expected      Bytes expected
+     * @return              Whether the bytes are equal
+     */
+    private static boolean equal(ByteBuffer buffer, int offset, int length, byte[] expected) {
+        if (length != expected.length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + i) != expected[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes bytes into a buffer
+     * @param buffer        Buffer to write
+     * @param offset        Offset to write at
+     * @param bytes         Bytes to write
+     * @return              Offset following the bytes
+     */
+    private static int put(ByteBuffer buffer, int offset, byte[] bytes) {
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset);
+        target.put(bytes);
+        return offset + bytes.length;
+    }
+
+    /**
+     * Reads a UTF-8 string from a buffer
+     * @param buffer        Buffer to read
+     * @param offset        Offset of the string
+     * @param length        Length of the string (in bytes)
+     * @return              The string, null if empty
+     */
+    private static String string(ByteBuffer buffer, int offset, int length) {
+        if (length <= 0)
+            return null;
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        source.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes a string for a record header
+     * @param value         String to encode, may be null
+     * @param maxLength     Longest encoding kept (in bytes)
+     * @return              The encoding, empty if null or too long to index
+     */
+    private static byte[] bytes(String value, int maxLength) {
+        if (value == null)
+            return new byte[0];
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return bytes.length <= maxLength ? bytes : new byte[0];
+    }
+
+    /**
+     * Returns the plugin a message comes from
+     * @param msg           Message to inspect
+     * @return              The source plugin, null if none
+     */
+    private static String pluginOf(MsgEvent msg) {
+        String plugin = msg.getParam("src_plugin");
+        return plugin != null ? plugin : msg.getMsgPlugin();
+    }
+
+    /**
+     * Memory-mapped segment file and its indexes
+     */
+    private static final class Segment {
+        /** Segment file */
+        private final File file;
+        /** Mapped content of the file */
+        private final MappedByteBuffer buffer;
+        /** Size of the file (in bytes) */
+        private final int capacity;
+        /** End of the last complete record */
+        private volatile int limit;
+        /** Append time of the oldest message */
+        private volatile long firstTime = Long.MAX_VALUE;
+        /** Append time of the newest message */
+        private volatile long lastTime = Long.MIN_VALUE;
+        /** Sparse time index: append times */
+        private long[] sparseTimes = new long[64];
+        /** Sparse time index: record offsets */
+        private int[] sparseOffsets = new int[64];
+        /** Sparse time index: number of entries */
+        private volatile int sparseCount;
+        /** Offset past which the next record gets a sparse index entry */
+        private int nextSparse;
+        /** Record offsets by type, level and plugin */
+        private final ConcurrentHashMap<String, Postings> postings = new ConcurrentHashMap<>();
+        /** References to the mapping: one held by the store while the segment is live, plus one per scan */
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        /**
+         * Constructor
+         * @param file          Segment file
+         * @param size          Size of a new file (in bytes), 0 to open an existing file as is
+         * @throws IOException  If the file could not be mapped
+         */
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (size > 0)
+                    raf.setLength(size);
+                long length = Math.min(raf.length(), Integer.MAX_VALUE);
+                this.capacity = (int) length;
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            }
+        }
+
+        /**
+         * Takes a reference to the mapping
+         * @return              Whether the mapping is still available, false once the segment was discarded
+         */
+        boolean acquire() {
+            while (true) {
+                int current = references.get();
+                if (current == 0)
+                    return false;
+                if (references.compareAndSet(current, current + 1))
+                    return true;
+            }
+        }
+
+        /**
+         * Returns a reference to the mapping, unmapping the file with the last one
+         */
+        void release() {
+            if (references.decrementAndGet() == 0)
+                unmap(buffer);
+        }
+
+        /**
+         * Adds a record to the indexes
+         * @param offset        Record offset
+         * @param time          Append time (in milliseconds)
+         * @param type          Message type, may be null
+         * @param level         Log level, may be null
+         * @param plugin        Source plugin, may be null
+         */
+        void index(int offset, long time, MsgEvent.Type type, String level, String plugin) {
+            if (offset >= nextSparse) {
+                int count = sparseCount;
+                if (count == sparseTimes.length) {
+                    sparseTimes = Arrays.copyOf(sparseTimes, count * 2);
+                    sparseOffsets = Arrays.copyOf(sparseOffsets, count * 2);
+                }
+                sparseTimes[count] = time;
+                sparseOffsets[count] = offset;
+                sparseCount = count + 1;
+                nextSparse = offset + INDEX_INTERVAL;
+            }
+            if (type != null)
+                post("type:" + type.name(), offset);
+            if (level != null)
+                post("level:" + level, offset);
+            if (plugin != null)
+                post("plugin:" + plugin, offset);
+            if (firstTime == Long.MAX_VALUE)
+                firstTime = time;
+            lastTime = time;
+        }
+
+        /**
+         * Adds a record to a postings list
+         * @param key           Index key
+         * @param offset        Record offset
+         */
+        private void post(String key, int offset) {
+            Postings list = postings.get(key);
+            if (list == null) {
+                list = new Postings();
+                postings.put(key, list);
+            }
+            list.add(offset);
+        }
+
+        /**
+         * Returns the shortest postings list covering a query
+         * @param query         Query to run
+         * @return              The shortest list, null if the query restricts neither type, level nor plugin
+         */
+        Postings postings(Query query) {
+            Postings best = null;
+            if (query.type != null)
+                best = shortest(best, "type:" + query.type.name());
+            if (query.level != null)
+                best = shortest(best, "level:" + new String(query.level, StandardCharsets.UTF_8));
+            if (query.plugin != null)
+                best = shortest(best, "plugin:" + new String(query.plugin, StandardCharsets.UTF_8));
+            return best;
+        }
+
+        /**
+         * Picks the shorter of two postings lists
+         * @param best          Shortest list so far, may be null
+         * @param key           Index key of the other list
+         * @return              The shorter list, {@link Postings#EMPTY} if the key matches no record
+         */
+        private Postings shortest(Postings best, String key) {
+            Postings list = postings.get(key);
+            if (list == null)
+                return Postings.EMPTY;
+            return best == null || list.size < best.size ? list : best;
+        }
+
+        /**
+         * Finds where a time range starts using the sparse time index
+         * @param from          Oldest append time included (in milliseconds)
+         * @return              Offset of a record at or before the first record of the range
+         */
+        int seek(long from) {
+            int count = sparseCount;
+            long[] times = sparseTimes;
+            int[] offsets = sparseOffsets;
+            int low = 0;
+            int high = count - 1;
+            int found = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] < from) {
+                    found = offsets[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+    }
+
+    /**
+     * Growable list of record offsets, appended by one writer and read concurrently
+     */
+    private static final class Postings {
+        /** List of a key that matches no record */
+        static final Postings EMPTY = new Postings();
+        /** Record offsets, in append order */
+        private int[] offsets = new int[16];
+        /** Number of offsets published to readers */
+        private volatile int size;
+
+        /**
+         * Appends an offset
+         * @param offset        Record offset
+         */
+        void add(int offset) {
+            int count = size;
+            if (count == offsets.length)
+                offsets = Arrays.copyOf(offsets, count * 2);
+            offsets[count] = offset;
+            size = count + 1;
+        }
+    }
+}
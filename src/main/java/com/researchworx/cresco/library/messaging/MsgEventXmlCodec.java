@@ -0,0 +1,267 @@
+package com.researchworx.cresco.library.messaging;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cresco reflection-free XML codec for {@link MsgEvent}
+ *
+ * Writes and reads the same document the JAXB binding of {@link MsgEvent} produces, without building a
+ * {@code JAXBContext}: elements are emitted directly into a per-thread reusable buffer and parsed back with a
+ * StAX reader. The one deliberate difference is that carriage returns are written as character references so
+ * they survive XML line-ending normalization. Instances are thread-safe; see {@link MsgEventCodecs} for the
+ * shared instance.
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public class MsgEventXmlCodec {
+    /** XML declaration written by the JAXB marshaller */
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>";
+    /** Root element name */
+    private static final String ROOT = "msgEvent";
+    /** Largest buffer (in characters) kept for reuse between calls */
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+    /** Parser factory, configured once */
+    private final XMLInputFactory inputFactory;
+    /** Per-thread output buffer */
+    private final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(512);
+        }
+    };
+
+    /**
+     * Constructor
+     */
+    public MsgEventXmlCodec() {
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /**
+     * Serializes a message to XML
+     * @param msg           Message to serialize
+     * @return              XML representation of the message
+     */
+    public String encode(MsgEvent msg) {
+        StringBuilder sb = buffers.get();
+        sb.setLength(0);
+        append(msg, sb);
+        String xml = sb.toString();
+        if (sb.capacity() > MAX_RETAINED_BUFFER)
+            buffers.remove();
+        return xml;
+    }
+
+    /**
+     * Serializes a message to XML
+     * @param msg           Message to serialize
+     * @param out           Destination of the XML representation
+     * @throws IOException  If the destination could not be written
+     */
+    public void encode(MsgEvent msg, Writer out) throws IOException {
+        out.write(encode(msg));
+    }
+
+    /**
+     * Deserializes a message from XML
+     * @param xml           XML representation of the message
+     * @return              The message
+     * @throws IOException  If the document is not a valid message
+     */
+    public MsgEvent decode(String xml) throws IOException {
+        return decode(new StringReader(xml));
+    }
+
+    /**
+     * Deserializes a message from XML
+     * @param in            Source of the XML representation
+     * @return              The message
+     * @throws IOException  If the source could not be read or is not a valid message
+     */
+    public MsgEvent decode(Reader in) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(in);
+            reader.nextTag();
+            if (!ROOT.equals(reader.getLocalName()))
+                throw new IOException("Unexpected root element: " + reader.getLocalName());
+            MsgEvent msg = new MsgEvent();
+            String body = null;
+            Map<String, String> params = null;
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "msgType":
+                        String type = reader.getElementText().trim();
+                        try {
+                            msg.setMsgType(MsgEvent.Type.valueOf(type));
+                        } catch (IllegalArgumentException e) {
+                            throw new IOException("Unknown message type: " + type);
+                        }
+                        break;
+                    case "msgRegion":
+                        msg.setMsgRegion(reader.getElementText());
+                        break;
+                    case "msgAgent":
+                        msg.setMsgAgent(reader.getElementText());
+                        break;
+                    case "msgPlugin":
+                        msg.setMsgPlugin(reader.getElementText());
+                        break;
+                    case "msgBody":
+                        body = reader.getElementText();
+                        break;
+                    case "params":
+                        params = readParams(reader);
+                        break;
+                    default:
+                        skipElement(reader);
+                }
+            }
+            if (params == null)
+                params = new HashMap<>();
+            // As with JAXB, the params element wins over msgBody
+            if (body != null && !params.containsKey("msg"))
+                params.put("msg", body);
+            msg.setParams(params);
+            return msg;
+        } catch (XMLStreamException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // Nothing left to release
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the document of a message
+     * @param msg           Message to serialize
+     * @param sb            Destination buffer
+     */
+    private void append(MsgEvent msg, StringBuilder sb) {
+        Map<String, String> params = msg.getParams();
+        sb.append(HEADER).append('<').append(ROOT).append('>');
+        element(sb, "msgAgent", msg.getMsgAgent());
+        element(sb, "msgBody", params != null ? params.get("msg") : null);
+        element(sb, "msgPlugin", msg.getMsgPlugin());
+        element(sb, "msgRegion", msg.getMsgRegion());
+        element(sb, "msgType", msg.getMsgType() != null ? msg.getMsgType().name() : null);
+        if (params != null) {
+            if (params.isEmpty()) {
+                sb.append("<params/>");
+            } else {
+                sb.append("<params>");
+                for (Map.Entry<String, String> param : params.entrySet()) {
+                    sb.append("<entry>");
+                    element(sb, "key", param.getKey());
+                    element(sb, "value", param.getValue());
+                    sb.append("</entry>");
+                }
+                sb.append("</params>");
+            }
+        }
+        sb.append("</").append(ROOT).append('>');
+    }
+
+    /**
+     * Writes a text element, omitting it when the value is null
+     * @param sb            Destination buffer
+     * @param name          Element name
+     * @param value         Element text
+     */
+    private static void element(StringBuilder sb, String name, String value) {
+        if (value == null)
+            return;
+        sb.append('<').append(name).append('>');
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            String escaped;
+            switch (value.charAt(i)) {
+                case '&':
+                    escaped = "&amp;";
+                    break;
+                case '<':
+                    escaped = "&lt;";
+                    break;
+                case '>':
+                    escaped = "&gt;";
+                    break;
+                case '\r':
+                    escaped = "&#13;";
+                    break;
+                default:
+                    continue;
+            }
+            sb.append(value, start, i).append(escaped);
+            start = i + 1;
+        }
+        sb.append(value, start, length);
+        sb.append("</").append(name).append('>');
+    }
+
+    /**
+     * Reads the entries of a params element
+     * @param reader        Reader positioned on the params start tag
+     * @return              The parameters
+     * @throws XMLStreamException If the element is malformed
+     */
+    private static Map<String, String> readParams(XMLStreamReader reader) throws XMLStreamException {
+        Map<String, String> params = new HashMap<>();
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (!"entry".equals(reader.getLocalName())) {
+                skipElement(reader);
+                continue;
+            }
+            String key = null;
+            String value = null;
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "key":
+                        key = reader.getElementText();
+                        break;
+                    case "value":
+                        value = reader.getElementText();
+                        break;
+                    default:
+                        skipElement(reader);
+                }
+            }
+            params.put(key, value);
+        }
+        return params;
+    }
+
+    /**
+     * Skips an element and all of its content
+     * @param reader        Reader positioned on the element's start tag
+     * @throws XMLStreamException If the element is malformed
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+}
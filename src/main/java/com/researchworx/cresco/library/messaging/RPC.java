@@ -1,7 +1,13 @@
 package com.researchworx.cresco.library.messaging;
 
+import com.researchworx.cresco.library.core.Identity;
+import com.researchworx.cresco.library.core.SharedIdentity;
 import com.researchworx.cresco.library.utilities.CLogger;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -17,18 +23,33 @@ public class RPC {
     private static final int CHECK_INTERVAL = 100;
     /** Maximum iterations to check for RPC return message */
     private static final int MAX_INTERVALS = 300;
+    /** Return messages remembered to recognize redelivered ones */
+    private static final int RECENT_RETURNS = 10000;
     /** Cresco logger */
     private CLogger logger;
     /** Communication channel */
     private BlockingQueue<MsgEvent> msgOutQueue;
     /** Central RPC return message repository */
     private ConcurrentMap<String, MsgEvent> rpcMap = new ConcurrentHashMap<>();
-    /** Region of this instance */
-    private String region;
-    /** Agent of this instance */
-    private String agent;
-    /** Plugin ID of this instance */
-    private String pluginID;
+    /** Outbound flow control, null to send directly */
+    private FlowController flowController;
+    /** Call IDs of the latest return messages accepted, least recent first */
+    private final LinkedHashMap<String, Boolean> recentReturns = new LinkedHashMap<String, Boolean>(64, 0.75f, false) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENT_RETURNS;
+        }
+    };
+    /** Load tracking and selection of call destinations */
+    private ReplicaSelector replicaSelector = new ReplicaSelector();
+    /** Time to wait for a replica before failing over to another (in milliseconds) */
+    private long failoverTimeout = 10000L;
+    /** Replicas tried per replica-aware call */
+    private int maxAttempts = 3;
+    /** Identity of this instance */
+    private final SharedIdentity identity;
 
     /**
      * Constructor
@@ -39,23 +60,29 @@ public class RPC {
      * @param logger        Logger to use
      */
     public RPC(BlockingQueue<MsgEvent> msgOutQueue, String region, String agent, String pluginID, CLogger logger) {
+        this(msgOutQueue, new SharedIdentity(region, agent, pluginID), logger);
+    }
+
+    /**
+     * Constructor
+     * @param msgOutQueue   Outbound communication channel
+     * @param identity      Identity of this instance, possibly shared with other components
+     * @param logger        Logger to use
+     */
+    public RPC(BlockingQueue<MsgEvent> msgOutQueue, SharedIdentity identity, CLogger logger) {
         this.logger = logger;
         this.msgOutQueue = msgOutQueue;
-        this.region = region;
-        this.agent = agent;
-        this.pluginID = pluginID;
+        this.identity = identity;
     }
 
     /**
-     * Updates the identity broadcast by this WatchDog instance
+     * Updates the identity of this instance, calls in flight keep the identity they started with
      * @param region        New Region to report from
      * @param agent         New Agent to report from
      * @param pluginID      New Plugin ID to report from
      */
     public void update(String region, String agent, String pluginID) {
-        setRegion(region);
-        setAgent(agent);
-        setPluginID(pluginID);
+        identity.update(region, agent, pluginID);
     }
 
     /**
@@ -64,34 +91,176 @@ public class RPC {
      * @return              The return message, null if no return is received
      */
     public MsgEvent call(MsgEvent msg) {
+        TraceContext span = Tracer.getDefault().nextSpan();
+        Identity caller = identity.get();
+        long startTS = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        MsgEvent callBack = null;
+        // Active for the duration of the call, so that anything logged meanwhile carries the trace
+        TraceContext previous = Tracer.activate(span);
         try {
-            String callId = java.util.UUID.randomUUID().toString();
-            msg.setParam("callId-" + region + "-" + agent + "-" + pluginID, callId);
-            msgOutQueue.add(msg);
+            String callId = TraceContext.newId();
+            msg.setParam(callIdParam(caller), callId);
+            span.inject(msg);
+            String target = ReplicaSelector.keyOf(msg.getParam("dst_region"), msg.getParam("dst_agent"),
+                    msg.getParam("dst_plugin"));
+            if (!send(msg))
+                return null;
+            callBack = attempt(callId, target, (long) CHECK_INTERVAL * MAX_INTERVALS);
+            return callBack;
+        } catch (Exception ex) {
+            logger.error("call {}", ex.getMessage());
+        } finally {
+            Tracer.getDefault().record("rpc.call", span, startTS, System.nanoTime() - startNanos, callBack == null,
+                    caller);
+            Tracer.activate(previous);
+        }
+        return null;
+    }
 
-            int count = 0;
-            while (count++ < MAX_INTERVALS) {
-                if (rpcMap.containsKey(callId)) {
-                    MsgEvent callBack;
-                    callBack = rpcMap.get(callId);
-                    rpcMap.remove(callId);
-                    return callBack;
-                }
-                Thread.sleep(CHECK_INTERVAL);
+    /**
+     * Issues a remote procedure call to one of several replicas of a plugin, picked by load
+     * @param msg           Message to send, left as is as each replica is sent its own copy
+     * @param replicas      Replicas able to handle the call
+     * @return              The return message, null if no return is received
+     */
+    public MsgEvent call(MsgEvent msg, List<ReplicaSelector.Replica> replicas) {
+        return call(msg, replicas, null);
+    }
+
+    /**
+     * Issues a remote procedure call to one of several replicas of a plugin
+     * <p>Without a routing key the replica is picked by load, otherwise calls with the same key stick to the same
+     * replica. When a replica does not answer within the failover timeout the call is resent to another one
+     * under the same call ID, so whichever answers first wins; the call may therefore be executed more than
+     * once. A call refused by outbound flow control is not failed over, as the other replicas share the
+     * channel.</p>
+     * @param msg           Message to send, left as is as each replica is sent its own copy
+     * @param replicas      Replicas able to handle the call
+     * @param routingKey    Key to route by, null to pick by load
+     * @return              The return message, null if no return is received
+     */
+    public MsgEvent call(MsgEvent msg, List<ReplicaSelector.Replica> replicas, String routingKey) {
+        TraceContext span = Tracer.getDefault().nextSpan();
+        Identity caller = identity.get();
+        long startTS = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        MsgEvent callBack = null;
+        // Active for the duration of the call, so that anything logged meanwhile carries the trace
+        TraceContext previous = Tracer.activate(span);
+        try {
+            String callId = TraceContext.newId();
+            MsgEvent call = new MsgEvent(msg.getMsgType(), msg.getMsgRegion(), msg.getMsgAgent(), msg.getMsgPlugin(),
+                    msg.getParams());
+            call.setParam(callIdParam(caller), callId);
+            span.inject(call);
+            ReplicaSelector selector = replicaSelector;
+            List<ReplicaSelector.Replica> tried = new ArrayList<>();
+            int attempts = Math.min(maxAttempts, replicas.size());
+            while (callBack == null && tried.size() < attempts) {
+                ReplicaSelector.Replica target = routingKey != null ? selector.select(replicas, routingKey, tried)
+                        : selector.select(replicas, tried);
+                if (target == null)
+                    break;
+                if (!tried.isEmpty())
+                    logger.warn("call failing over from {} to {}", tried.get(tried.size() - 1), target);
+                tried.add(target);
+                // Each attempt gets its own copy, the previous one may still be waiting in the channel
+                MsgEvent copy = new MsgEvent(call.getMsgType(), call.getMsgRegion(), call.getMsgAgent(),
+                        call.getMsgPlugin(), call.getParams());
+                copy.setDst(target.getRegion(), target.getAgent(), target.getPlugin());
+                if (!send(copy))
+                    break;
+                callBack = attempt(callId, target.toString(), failoverTimeout);
             }
+            return callBack;
         } catch (Exception ex) {
             logger.error("call {}", ex.getMessage());
+        } finally {
+            Tracer.getDefault().record("rpc.call", span, startTS, System.nanoTime() - startNanos, callBack == null,
+                    caller);
+            Tracer.activate(previous);
         }
         return null;
     }
 
+    /**
+     * Returns the parameter carrying the ID of calls issued under an identity
+     * @param id            Identity of the caller
+     * @return              Parameter name
+     */
+    private static String callIdParam(Identity id) {
+        return "callId-" + id.getRegion() + "-" + id.getAgent() + "-" + id.getPluginID();
+    }
+
+    /**
+     * Places a call in the outbound channel
+     * @param msg           Message to send
+     * @return              Whether the message was sent, false if refused by outbound flow control
+     */
+    private boolean send(MsgEvent msg) {
+        FlowController flow = flowController;
+        if (flow == null) {
+            msgOutQueue.add(msg);
+        } else if (!flow.trySend(msg)) {
+            logger.warn("call rejected by outbound flow control");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the return of a call sent to one destination, tracking the calls in flight and the latency
+     * of the destination
+     * @param callId        ID of the call
+     * @param target        Destination key, see {@link ReplicaSelector#keyOf(String, String, String)}
+     * @param timeout       Time to wait for the return (in milliseconds)
+     * @return              The return message, null if no return is received
+     * @throws InterruptedException If interrupted while waiting
+     */
+    private MsgEvent attempt(String callId, String target, long timeout) throws InterruptedException {
+        ReplicaSelector selector = replicaSelector;
+        long sent = System.nanoTime();
+        selector.begin(target);
+        try {
+            long intervals = Math.max(1L, timeout / CHECK_INTERVAL);
+            for (long count = 0; count < intervals; count++) {
+                MsgEvent callBack = rpcMap.remove(callId);
+                if (callBack != null)
+                    return callBack;
+                Thread.sleep(CHECK_INTERVAL);
+            }
+            return rpcMap.remove(callId);
+        } finally {
+            // Timeouts count at their full length, steering load-aware selection away from slow replicas
+            selector.end(target, System.nanoTime() - sent);
+        }
+    }
+
     /**
      * Places the return message for retrieval
      * @param callId            ID of the remote-procedural call
      * @param returnMessage     The return message
      */
     public void putReturnMessage(String callId, MsgEvent returnMessage) {
+        offerReturnMessage(callId, returnMessage);
+    }
+
+    /**
+     * Places the return message for retrieval unless a return for the same call was received recently
+     * @param callId            ID of the remote-procedural call
+     * @param returnMessage     The return message
+     * @return                  Whether the message was accepted, false if it is a redelivered return
+     */
+    public boolean offerReturnMessage(String callId, MsgEvent returnMessage) {
+        synchronized (recentReturns) {
+            if (recentReturns.put(callId, Boolean.TRUE) != null) {
+                logger.debug("offerReturnMessage dropping duplicate return for call {}", callId);
+                return false;
+            }
+        }
         rpcMap.put(callId, returnMessage);
+        return true;
     }
 
     /**
@@ -99,7 +268,7 @@ public class RPC {
      * @return          Current region identification
      */
     public String getRegion() {
-        return region;
+        return identity.get().getRegion();
     }
 
     /**
@@ -107,7 +276,7 @@ public class RPC {
      * @param region    New region identification
      */
     public void setRegion(String region) {
-        this.region = region;
+        identity.updateRegion(region);
     }
 
     /**
@@ -115,7 +284,7 @@ public class RPC {
      * @return          Current agent identification
      */
     public String getAgent() {
-        return agent;
+        return identity.get().getAgent();
     }
 
     /**
@@ -123,7 +292,7 @@ public class RPC {
      * @param agent     New agent identification
      */
     public void setAgent(String agent) {
-        this.agent = agent;
+        identity.updateAgent(agent);
     }
 
     /**
@@ -131,7 +300,7 @@ public class RPC {
      * @return          Current plugin identification
      */
     public String getPluginID() {
-        return pluginID;
+        return identity.get().getPluginID();
     }
 
     /**
@@ -139,7 +308,79 @@ public class RPC {
      * @param pluginID  New plugin identification
      */
     public void setPluginID(String pluginID) {
-        this.pluginID = pluginID;
+        identity.updatePluginID(pluginID);
+    }
+
+    /**
+     * Identity getter
+     * @return          Identity holder of this instance
+     */
+    public SharedIdentity getIdentity() {
+        return identity;
+    }
+
+    /**
+     * Flow control getter
+     * @return          Current outbound flow control, null if messages are sent directly
+     */
+    public FlowController getFlowController() {
+        return flowController;
+    }
+
+    /**
+     * Flow control setter
+     * @param flowController    New outbound flow control, null to send directly
+     */
+    public void setFlowController(FlowController flowController) {
+        this.flowController = flowController;
+    }
+
+    /**
+     * Replica selector getter
+     * @return          Current load tracking and selection of call destinations
+     */
+    public ReplicaSelector getReplicaSelector() {
+        return replicaSelector;
+    }
+
+    /**
+     * Replica selector setter, e.g. to share load tracking between several instances
+     * @param replicaSelector   New load tracking and selection of call destinations
+     */
+    public void setReplicaSelector(ReplicaSelector replicaSelector) {
+        this.replicaSelector = replicaSelector;
+    }
+
+    /**
+     * Failover timeout getter
+     * @return          Current time to wait for a replica before failing over (in milliseconds)
+     */
+    public long getFailoverTimeout() {
+        return failoverTimeout;
+    }
+
+    /**
+     * Failover timeout setter
+     * @param failoverTimeout   New time to wait for a replica before failing over (in milliseconds)
+     */
+    public void setFailoverTimeout(long failoverTimeout) {
+        this.failoverTimeout = failoverTimeout;
+    }
+
+    /**
+     * Attempt limit getter
+     * @return          Current number of replicas tried per replica-aware call
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Attempt limit setter
+     * @param maxAttempts   New number of replicas tried per replica-aware call
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
     }
 
     /**
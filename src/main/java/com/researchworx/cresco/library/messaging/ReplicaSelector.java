@@ -0,0 +1,370 @@
+package com.researchworx.cresco.library.messaging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cresco RPC replica selector
+ *
+ * Tracks the calls in flight and a moving average of the reply latency of every RPC destination, and picks
+ * among the replicas of a plugin either the one with the fewest calls outstanding or the better of two picked
+ * at random (weighing calls in flight by latency). Calls carrying a routing key are instead mapped onto a
+ * consistent hash ring, so the same key keeps reaching the same replica while the replica set is stable, and
+ * falls through to the next replica on the ring when that one has to be skipped. Timed out calls are charged
+ * as a latency penalty, which steers load-aware selection away from slow replicas.
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public class ReplicaSelector {
+    /**
+     * Load-aware selection strategies
+     */
+    public enum Strategy {
+        /** Replica with the fewest calls in flight, ties going to the lowest latency */
+        LEAST_OUTSTANDING,
+        /** Better of two random replicas, scored by calls in flight times latency */
+        POWER_OF_TWO
+    }
+
+    /**
+     * RPC destination, identified by region, agent and plugin
+     */
+    public static final class Replica {
+        /** Destination region */
+        private final String region;
+        /** Destination agent */
+        private final String agent;
+        /** Destination plugin */
+        private final String plugin;
+        /** Tracking key */
+        private final String key;
+
+        /**
+         * Constructor
+         * @param region        Destination region
+         * @param agent         Destination agent
+         * @param plugin        Destination plugin
+         */
+        public Replica(String region, String agent, String plugin) {
+            this.region = region;
+            this.agent = agent;
+            this.plugin = plugin;
+            this.key = keyOf(region, agent, plugin);
+        }
+
+        /**
+         * Region getter
+         * @return          Destination region
+         */
+        public String getRegion() {
+            return region;
+        }
+
+        /**
+         * Agent getter
+         * @return          Destination agent
+         */
+        public String getAgent() {
+            return agent;
+        }
+
+        /**
+         * Plugin getter
+         * @return          Destination plugin
+         */
+        public String getPlugin() {
+            return plugin;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Replica && key.equals(((Replica) o).key);
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return key;
+        }
+    }
+
+    /** Weight of the newest sample in the latency average */
+    private static final double LATENCY_WEIGHT = 0.3;
+    /** Points per replica on the hash ring */
+    private static final int VIRTUAL_NODES = 64;
+    /** Destinations tracked before new ones are ignored */
+    private static final int MAX_TRACKED = 4096;
+    /** Hash rings kept for reuse, one per replica set */
+    private static final int MAX_RINGS = 64;
+
+    /** Load-aware selection strategy */
+    private volatile Strategy strategy = Strategy.POWER_OF_TWO;
+    /** Statistics by destination */
+    private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<>();
+    /** Hash rings by replica set, for sticky routing */
+    private final ConcurrentHashMap<List<Replica>, Ring> rings = new ConcurrentHashMap<>();
+
+    /**
+     * Picks a replica by load
+     * @param replicas      Candidate replicas
+     * @param exclude       Replicas to skip, e.g. those already tried
+     * @return              The selected replica, null if every candidate is excluded
+     */
+    public Replica select(List<Replica> replicas, Collection<Replica> exclude) {
+        int size = replicas.size();
+        if (size == 0)
+            return null;
+        if (strategy == Strategy.POWER_OF_TWO) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            Replica first = null;
+            Replica second = null;
+            // Sample two distinct candidates, bounded in case most of them are excluded
+            for (int i = 0; i < size * 2 && second == null; i++) {
+                Replica candidate = replicas.get(random.nextInt(size));
+                if (exclude.contains(candidate) || candidate.equals(first))
+                    continue;
+                if (first == null)
+                    first = candidate;
+                else
+                    second = candidate;
+            }
+            if (first != null && second != null)
+                return score(first) <= score(second) ? first : second;
+        }
+        // Least outstanding, also the fallback when too few candidates remain for two random picks
+        int start = ThreadLocalRandom.current().nextInt(size);
+        Replica best = null;
+        int bestInFlight = Integer.MAX_VALUE;
+        double bestLatency = Double.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            Replica candidate = replicas.get((start + i) % size);
+            if (exclude.contains(candidate))
+                continue;
+            int inFlight = getInFlight(candidate);
+            double latency = getLatency(candidate);
+            if (inFlight < bestInFlight || (inFlight == bestInFlight && latency < bestLatency)) {
+                best = candidate;
+                bestInFlight = inFlight;
+                bestLatency = latency;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Picks the replica owning a routing key on the consistent hash ring
+     * @param replicas      Candidate replicas
+     * @param routingKey    Key to route by
+     * @param exclude       Replicas to skip, the key then falling to the next replica on the ring
+     * @return              The selected replica, null if every candidate is excluded
+     */
+    public Replica select(List<Replica> replicas, String routingKey, Collection<Replica> exclude) {
+        if (replicas.isEmpty())
+            return null;
+        Ring ring = rings.get(replicas);
+        if (ring == null) {
+            if (rings.size() >= MAX_RINGS) {
+                // Replica sets come and go with the topology, so any ring may make room
+                Iterator<List<Replica>> it = rings.keySet().iterator();
+                if (it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+            ring = new Ring(replicas);
+            Ring existing = rings.putIfAbsent(ring.replicas, ring);
+            if (existing != null)
+                ring = existing;
+        }
+        return ring.locate(MsgEventDeduplicator.hash(routingKey), exclude);
+    }
+
+    /**
+     * Records the start of a call
+     * @param key           Destination key, see {@link #keyOf(String, String, String)}
+     */
+    public void begin(String key) {
+        Stats s = stats(key);
+        if (s != null)
+            s.inFlight.incrementAndGet();
+    }
+
+    /**
+     * Records the end of a call
+     * @param key           Destination key, see {@link #keyOf(String, String, String)}
+     * @param latencyNanos  Time until the reply or timeout (in nanoseconds)
+     */
+    public void end(String key, long latencyNanos) {
+        Stats s = stats.get(key);
+        if (s == null)
+            return;
+        s.inFlight.decrementAndGet();
+        while (true) {
+            long bits = s.latency.get();
+            double average = Double.longBitsToDouble(bits);
+            double updated = average == 0d ? latencyNanos
+                    : average + LATENCY_WEIGHT * (latencyNanos - average);
+            if (s.latency.compareAndSet(bits, Double.doubleToRawLongBits(updated)))
+                return;
+        }
+    }
+
+    /**
+     * In-flight getter
+     * @param replica       Replica to inspect
+     * @return              Current number of calls in flight to the replica
+     */
+    public int getInFlight(Replica replica) {
+        Stats s = stats.get(replica.key);
+        return s != null ? Math.max(0, s.inFlight.get()) : 0;
+    }
+
+    /**
+     * Latency getter
+     * @param replica       Replica to inspect
+     * @return              Moving average of the reply latency of the replica (in nanoseconds), 0 if unknown
+     */
+    public double getLatency(Replica replica) {
+        Stats s = stats.get(replica.key);
+        return s != null ? Double.longBitsToDouble(s.latency.get()) : 0d;
+    }
+
+    /**
+     * Strategy getter
+     * @return          Current load-aware selection strategy
+     */
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Strategy setter
+     * @param strategy  New load-aware selection strategy
+     */
+    public void setStrategy(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * Returns the tracking key of a destination
+     * @param region        Destination region
+     * @param agent         Destination agent
+     * @param plugin        Destination plugin
+     * @return              Tracking key
+     */
+    public static String keyOf(String region, String agent, String plugin) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(region).append('/').append(agent);
+        if (plugin != null)
+            sb.append('/').append(plugin);
+        return sb.toString();
+    }
+
+    /**
+     * Scores a replica for power-of-two selection, lower being better
+     * @param replica       Replica to score
+     * @return              Score
+     */
+    private double score(Replica replica) {
+        // Unknown latency counts as one millisecond, so fresh replicas get probed without being flooded
+        return (getInFlight(replica) + 1) * Math.max(getLatency(replica), 1000000d);
+    }
+
+    /**
+     * Returns the statistics of a destination, creating them if needed
+     * @param key           Destination key
+     * @return              The statistics, null once too many destinations are tracked
+     */
+    private Stats stats(String key) {
+        Stats s = stats.get(key);
+        if (s == null) {
+            if (stats.size() >= MAX_TRACKED)
+                return null;
+            Stats created = new Stats();
+            s = stats.putIfAbsent(key, created);
+            if (s == null)
+                s = created;
+        }
+        return s;
+    }
+
+    /**
+     * Load statistics of a destination
+     */
+    private static final class Stats {
+        /** Calls in flight */
+        private final AtomicInteger inFlight = new AtomicInteger();
+        /** Bits of the moving average of the reply latency (in nanoseconds) */
+        private final AtomicLong latency = new AtomicLong(Double.doubleToRawLongBits(0d));
+    }
+
+    /**
+     * Consistent hash ring of a replica set
+     */
+    private static final class Ring {
+        /** Replica set the ring was built from */
+        private final List<Replica> replicas;
+        /** Sorted point hashes */
+        private final long[] points;
+        /** Replica owning each point */
+        private final Replica[] owners;
+
+        /**
+         * Constructor
+         * @param replicas      Replica set
+         */
+        Ring(List<Replica> replicas) {
+            this.replicas = new ArrayList<>(replicas);
+            int count = replicas.size() * VIRTUAL_NODES;
+            long[][] entries = new long[count][];
+            for (int r = 0; r < replicas.size(); r++) {
+                for (int v = 0; v < VIRTUAL_NODES; v++)
+                    entries[r * VIRTUAL_NODES + v] = new long[] {
+                            MsgEventDeduplicator.hash(replicas.get(r).key + "#" + v), r };
+            }
+            Arrays.sort(entries, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] a, long[] b) {
+                    return Long.compare(a[0], b[0]);
+                }
+            });
+            points = new long[count];
+            owners = new Replica[count];
+            for (int i = 0; i < count; i++) {
+                points[i] = entries[i][0];
+                owners[i] = replicas.get((int) entries[i][1]);
+            }
+        }
+
+        /**
+         * Finds the first replica at or after a hash on the ring
+         * @param hash          Hash of the routing key
+         * @param exclude       Replicas to skip
+         * @return              The owning replica, null if every replica is excluded
+         */
+        Replica locate(long hash, Collection<Replica> exclude) {
+            int index = Arrays.binarySearch(points, hash);
+            if (index < 0)
+                index = -index - 1;
+            for (int i = 0; i < points.length; i++) {
+                Replica owner = owners[(index + i) % points.length];
+                if (!exclude.contains(owner))
+                    return owner;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.researchworx.cresco.library.messaging;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Cresco chunked payload receiver
+ *
+ * Reassembles the chunk messages produced by a {@link StreamSender} into a channel as they arrive. Chunks are
+ * written strictly in order; anything out of order or failing its checksum is dropped and a retransmission is
+ * requested, so memory use is bounded by a single chunk. Acknowledgements go out every half window, the
+ * smaller of the local window and the one announced by the sender, so neither side waits for a timeout.
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public class StreamReceiver {
+    /** Communication channel for acknowledgements */
+    private final BlockingQueue<MsgEvent> msgOutQueue;
+    /** Destination of the reassembled payload */
+    private final WritableByteChannel channel;
+    /** Credit granted to the sender (in chunks) */
+    private final int window;
+    /** Identifier of the stream being received, fixed by the first chunk */
+    private String streamId;
+    /** Next sequence number to be written */
+    private long nextSeq;
+    /** Chunks written since the last acknowledgement */
+    private int sinceAck = 0;
+    /** Sequence number for which a retransmission was last requested */
+    private long resendRequested = -1L;
+    /** Payload bytes written */
+    private long bytesWritten = 0L;
+    /** Whether the final chunk has been written */
+    private boolean complete = false;
+
+    /**
+     * Constructor
+     * @param msgOutQueue   Outbound communication channel for acknowledgements
+     * @param channel       Destination of the reassembled payload
+     */
+    public StreamReceiver(BlockingQueue<MsgEvent> msgOutQueue, WritableByteChannel channel) {
+        this(msgOutQueue, channel, StreamSender.DEFAULT_WINDOW, 0L);
+    }
+
+    /**
+     * Constructor
+     * @param msgOutQueue   Outbound communication channel for acknowledgements
+     * @param channel       Destination of the reassembled payload
+     * @param window        Credit granted to the sender (in chunks)
+     * @param nextSeq       First chunk expected, non-zero when resuming a partial transfer
+     */
+    public StreamReceiver(BlockingQueue<MsgEvent> msgOutQueue, WritableByteChannel channel, int window, long nextSeq) {
+        if (window <= 0)
+            throw new IllegalArgumentException("window must be positive");
+        this.msgOutQueue = msgOutQueue;
+        this.channel = channel;
+        this.window = window;
+        this.nextSeq = nextSeq;
+    }
+
+    /**
+     * Processes a chunk message
+     * @param chunk         Chunk message issued by a {@link StreamSender}
+     * @return              Whether the stream is complete
+     * @throws IOException  If the payload could not be written
+     */
+    public synchronized boolean accept(MsgEvent chunk) throws IOException {
+        if (!StreamSender.ACTION_CHUNK.equals(chunk.getParam(StreamSender.PARAM_ACTION)))
+            return complete;
+        String id = chunk.getParam(StreamSender.PARAM_ID);
+        if (streamId == null)
+            streamId = id;
+        else if (!streamId.equals(id))
+            return complete;
+        long seq;
+        try {
+            seq = Long.parseLong(chunk.getParam(StreamSender.PARAM_SEQ));
+        } catch (NumberFormatException e) {
+            return complete;
+        }
+        if (complete || seq < nextSeq) {
+            // Duplicate, the sender most likely missed our last acknowledgement
+            acknowledge(chunk, complete ? StreamSender.STATUS_COMPLETE : StreamSender.STATUS_OK);
+            return complete;
+        }
+        if (seq > nextSeq) {
+            requestResend(chunk);
+            return false;
+        }
+        String encoded = chunk.getParam(StreamSender.PARAM_DATA);
+        byte[] data = DatatypeConverter.parseBase64Binary(encoded != null ? encoded : "");
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if (!Long.toHexString(crc.getValue()).equals(chunk.getParam(StreamSender.PARAM_CRC))) {
+            requestResend(chunk);
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        bytesWritten += data.length;
+        nextSeq++;
+        resendRequested = -1L;
+        if (Boolean.parseBoolean(chunk.getParam(StreamSender.PARAM_LAST))) {
+            complete = true;
+            acknowledge(chunk, StreamSender.STATUS_COMPLETE);
+        } else if (++sinceAck >= Math.max(1, Math.min(window, senderWindow(chunk)) / 2)) {
+            acknowledge(chunk, StreamSender.STATUS_OK);
+        }
+        return complete;
+    }
+
+    /**
+     * Requests a retransmission from the next expected chunk, once per gap
+     * @param chunk         Chunk that triggered the request
+     */
+    private void requestResend(MsgEvent chunk) {
+        if (resendRequested == nextSeq)
+            return;
+        resendRequested = nextSeq;
+        acknowledge(chunk, StreamSender.STATUS_RESEND);
+    }
+
+    /**
+     * Returns the initial credit announced by the sender of a chunk
+     * @param chunk         Chunk received
+     * @return              Sender window (in chunks), the local window if not announced
+     */
+    private int senderWindow(MsgEvent chunk) {
+        String announced = chunk.getParam(StreamSender.PARAM_WINDOW);
+        if (announced == null)
+            return window;
+        try {
+            return Math.max(1, Integer.parseInt(announced));
+        } catch (NumberFormatException e) {
+            return window;
+        }
+    }
+
+    /**
+     * Sends an acknowledgement back to the originator of a chunk
+     * @param chunk         Chunk being acknowledged
+     * @param status        Receiver status to report
+     */
+    private void acknowledge(MsgEvent chunk, String status) {
+        HashMap<String, String> routing = new HashMap<>();
+        for (String key : new String[] {"src_region", "src_agent", "src_plugin", "dst_region", "dst_agent", "dst_plugin"}) {
+            String value = chunk.getParam(key);
+            if (value != null)
+                routing.put(key, value);
+        }
+        MsgEvent ack = new MsgEvent(chunk.getMsgType(), chunk.getMsgRegion(), chunk.getMsgAgent(),
+                chunk.getMsgPlugin(), routing);
+        ack.setReturn();
+        ack.setParam(StreamSender.PARAM_ID, streamId);
+        ack.setParam(StreamSender.PARAM_ACTION, StreamSender.ACTION_ACK);
+        ack.setParam(StreamSender.PARAM_ACK, String.valueOf(nextSeq));
+        ack.setParam(StreamSender.PARAM_CREDIT, String.valueOf(window));
+        ack.setParam(StreamSender.PARAM_STATUS, status);
+        sinceAck = 0;
+        msgOutQueue.offer(ack);
+    }
+
+    /**
+     * Stream identification getter
+     * @return          Identifier of the stream being received, null before the first chunk
+     */
+    public synchronized String getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Progress getter
+     * @return          Next sequence number to be written, pass to {@link StreamSender#send(java.io.InputStream, long)} to resume
+     */
+    public synchronized long getNextSeq() {
+        return nextSeq;
+    }
+
+    /**
+     * Payload size getter
+     * @return          Payload bytes written so far
+     */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Completion getter
+     * @return          Whether the final chunk has been written
+     */
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+}
@@ -0,0 +1,437 @@
+package com.researchworx.cresco.library.messaging;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+/**
+ * Cresco chunked payload sender
+ *
+ * Splits a stream into sequenced chunk messages so that large payloads never have to be held in a single parameter.
+ * At most one window of unacknowledged chunks is buffered; the receiver grants further credit through
+ * acknowledgement messages that must be handed to {@link #acknowledge(MsgEvent)}.
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public class StreamSender {
+    /** Parameter holding the stream identifier */
+    public static final String PARAM_ID = "stream_id";
+    /** Parameter holding the stream action ({@link #ACTION_CHUNK} or {@link #ACTION_ACK}) */
+    public static final String PARAM_ACTION = "stream_action";
+    /** Parameter holding the chunk sequence number */
+    public static final String PARAM_SEQ = "stream_seq";
+    /** Parameter holding the Base64 encoded chunk payload */
+    public static final String PARAM_DATA = "stream_data";
+    /** Parameter holding the CRC32 of the raw chunk payload */
+    public static final String PARAM_CRC = "stream_crc";
+    /** Parameter flagging the final chunk of a stream */
+    public static final String PARAM_LAST = "stream_last";
+    /** Parameter holding the initial credit of the sender (in chunks), so the receiver acknowledges often enough */
+    public static final String PARAM_WINDOW = "stream_window";
+    /** Parameter holding the next sequence number expected by the receiver */
+    public static final String PARAM_ACK = "stream_ack";
+    /** Parameter holding the number of chunks the receiver will accept past the acknowledged sequence */
+    public static final String PARAM_CREDIT = "stream_credit";
+    /** Parameter holding the receiver status ({@link #STATUS_OK}, {@link #STATUS_RESEND} or {@link #STATUS_COMPLETE}) */
+    public static final String PARAM_STATUS = "stream_status";
+    /** Chunk message action */
+    public static final String ACTION_CHUNK = "chunk";
+    /** Acknowledgement message action */
+    public static final String ACTION_ACK = "ack";
+    /** Receiver accepted all chunks up to the acknowledged sequence */
+    public static final String STATUS_OK = "ok";
+    /** Receiver requests retransmission from the acknowledged sequence */
+    public static final String STATUS_RESEND = "resend";
+    /** Receiver has written the final chunk */
+    public static final String STATUS_COMPLETE = "complete";
+
+    /** Default chunk payload size (in bytes) */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    /** Default number of chunks in flight before an acknowledgement is required */
+    public static final int DEFAULT_WINDOW = 8;
+    /** Default time to wait for an acknowledgement before retransmitting (in milliseconds) */
+    public static final long DEFAULT_ACK_TIMEOUT = 10000L;
+    /** Default number of consecutive retransmissions before giving up */
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+    /** Communication channel */
+    private final BlockingQueue<MsgEvent> msgOutQueue;
+    /** Message carrying the routing information copied into every chunk */
+    private final MsgEvent template;
+    /** Identifier of this stream */
+    private final String streamId;
+    /** Chunk payload size (in bytes) */
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    /** Initial credit granted before the first acknowledgement */
+    private int window = DEFAULT_WINDOW;
+    /** Time to wait for an acknowledgement before retransmitting (in milliseconds) */
+    private long ackTimeout = DEFAULT_ACK_TIMEOUT;
+    /** Consecutive retransmissions before giving up */
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+
+    /** Chunks sent but not yet acknowledged, in sequence order */
+    private final ArrayDeque<Chunk> unacked = new ArrayDeque<>();
+    /** Next sequence number expected by the receiver */
+    private long acked;
+    /** Chunks the receiver will accept past {@link #acked} */
+    private int credit;
+    /** Whether the receiver requested a retransmission */
+    private boolean resendRequested;
+    /** Whether the receiver reported the stream complete */
+    private boolean complete;
+
+    /**
+     * Constructor
+     * @param msgOutQueue   Outbound communication channel
+     * @param template      Message whose type, routing and parameters are copied into every chunk
+     */
+    public StreamSender(BlockingQueue<MsgEvent> msgOutQueue, MsgEvent template) {
+        this(msgOutQueue, template, Long.toHexString(ThreadLocalRandom.current().nextLong()));
+    }
+
+    /**
+     * Constructor
+     * @param msgOutQueue   Outbound communication channel
+     * @param template      Message whose type, routing and parameters are copied into every chunk
+     * @param streamId      Identifier of the stream, reuse a previous identifier to resume a transfer
+     */
+    public StreamSender(BlockingQueue<MsgEvent> msgOutQueue, MsgEvent template, String streamId) {
+        this.msgOutQueue = msgOutQueue;
+        this.template = template;
+        this.streamId = streamId;
+    }
+
+    /**
+     * Sends the contents of a stream
+     * @param in            Stream to send
+     * @return              Whether the receiver acknowledged the complete stream
+     * @throws IOException  If the stream could not be read
+     * @throws InterruptedException If interrupted while waiting for the receiver
+     */
+    public boolean send(InputStream in) throws IOException, InterruptedException {
+        return send(in, 0L);
+    }
+
+    /**
+     * Resumes sending the contents of a stream
+     * @param in            Stream to send, positioned at its beginning
+     * @param fromSeq       First chunk to send, as reported by {@link StreamReceiver#getNextSeq()}
+     * @return              Whether the receiver acknowledged the complete stream
+     * @throws IOException  If the stream could not be read
+     * @throws InterruptedException If interrupted while waiting for the receiver
+     */
+    public boolean send(InputStream in, long fromSeq) throws IOException, InterruptedException {
+        long toSkip = fromSeq * chunkSize;
+        while (toSkip > 0) {
+            long skipped = in.skip(toSkip);
+            if (skipped <= 0) {
+                if (in.read() < 0)
+                    break;
+                skipped = 1;
+            }
+            toSkip -= skipped;
+        }
+        begin(fromSeq);
+        byte[] buffer = new byte[chunkSize];
+        long seq = fromSeq;
+        boolean last = false;
+        while (!last) {
+            int read = 0;
+            while (read < chunkSize) {
+                int n = in.read(buffer, read, chunkSize - read);
+                if (n < 0) {
+                    last = true;
+                    break;
+                }
+                read += n;
+            }
+            if (!transmit(seq++, Arrays.copyOf(buffer, read), last))
+                return false;
+        }
+        return awaitComplete();
+    }
+
+    /**
+     * Sends the contents of a file
+     * @param channel       File to send
+     * @return              Whether the receiver acknowledged the complete file
+     * @throws IOException  If the file could not be read
+     * @throws InterruptedException If interrupted while waiting for the receiver
+     */
+    public boolean send(FileChannel channel) throws IOException, InterruptedException {
+        return send(channel, 0L);
+    }
+
+    /**
+     * Resumes sending the contents of a file, up to its size when the transfer starts
+     * @param channel       File to send
+     * @param fromSeq       First chunk to send, as reported by {@link StreamReceiver#getNextSeq()}
+     * @return              Whether the receiver acknowledged the complete file
+     * @throws IOException  If the file could not be read
+     * @throws InterruptedException If interrupted while waiting for the receiver
+     */
+    public boolean send(FileChannel channel, long fromSeq) throws IOException, InterruptedException {
+        long size = channel.size();
+        long position = Math.min(fromSeq * chunkSize, size);
+        begin(fromSeq);
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+        long seq = fromSeq;
+        boolean last = false;
+        while (!last) {
+            buffer.clear();
+            int limit = (int) Math.min(chunkSize, size - position);
+            buffer.limit(limit);
+            boolean eof = false;
+            while (buffer.hasRemaining() && !eof)
+                eof = channel.read(buffer, position + buffer.position()) < 0;
+            position += buffer.position();
+            // A file truncated while being sent ends the stream where its data ends
+            last = eof || position >= size;
+            if (!transmit(seq++, Arrays.copyOf(buffer.array(), buffer.position()), last))
+                return false;
+        }
+        return awaitComplete();
+    }
+
+    /**
+     * Applies an acknowledgement issued by the {@link StreamReceiver} of this stream
+     * @param ack           Acknowledgement message
+     * @return              Whether the message belonged to this stream
+     */
+    public boolean acknowledge(MsgEvent ack) {
+        if (!streamId.equals(ack.getParam(PARAM_ID)) || !ACTION_ACK.equals(ack.getParam(PARAM_ACTION)))
+            return false;
+        long next;
+        int granted;
+        try {
+            next = Long.parseLong(ack.getParam(PARAM_ACK));
+            granted = Integer.parseInt(ack.getParam(PARAM_CREDIT));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        String status = ack.getParam(PARAM_STATUS);
+        synchronized (this) {
+            if (next >= acked) {
+                acked = next;
+                credit = Math.max(1, granted);
+                while (!unacked.isEmpty() && unacked.peekFirst().seq < next)
+                    unacked.pollFirst();
+            }
+            if (STATUS_RESEND.equals(status))
+                resendRequested = true;
+            if (STATUS_COMPLETE.equals(status))
+                complete = true;
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Resets the flow control state for a transfer starting at the given sequence
+     * @param fromSeq       First chunk of the transfer
+     */
+    private synchronized void begin(long fromSeq) {
+        unacked.clear();
+        acked = fromSeq;
+        credit = window;
+        resendRequested = false;
+        complete = false;
+    }
+
+    /**
+     * Waits for credit and sends a single chunk
+     * @param seq           Sequence number of the chunk
+     * @param data          Raw chunk payload
+     * @param last          Whether this is the final chunk
+     * @return              Whether the chunk was sent before the retry budget ran out
+     * @throws InterruptedException If interrupted while waiting for credit
+     */
+    private boolean transmit(long seq, byte[] data, boolean last) throws InterruptedException {
+        int retries = 0;
+        synchronized (this) {
+            while (seq - acked >= credit) {
+                long before = acked;
+                if (!awaitAck())
+                    return false;
+                retries = (acked > before) ? 0 : retries + 1;
+                if (retries > maxRetries)
+                    return false;
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        Chunk chunk = new Chunk(seq, data, crc.getValue(), last);
+        synchronized (this) {
+            unacked.addLast(chunk);
+        }
+        msgOutQueue.put(toMsgEvent(chunk));
+        return true;
+    }
+
+    /**
+     * Waits until the receiver has acknowledged the final chunk
+     * @return              Whether the receiver reported the stream complete
+     * @throws InterruptedException If interrupted while waiting
+     */
+    private synchronized boolean awaitComplete() throws InterruptedException {
+        int retries = 0;
+        while (!complete) {
+            long before = acked;
+            if (!awaitAck())
+                return false;
+            retries = (acked > before || complete) ? 0 : retries + 1;
+            if (retries > maxRetries)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for a single acknowledgement, retransmitting unacknowledged chunks on timeout or on request
+     * <p>Must be called while holding this instance's monitor.</p>
+     * @return              Whether the stream may continue
+     * @throws InterruptedException If interrupted while waiting
+     */
+    private boolean awaitAck() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ackTimeout;
+        long before = acked;
+        while (!resendRequested && !complete && acked == before) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                break;
+            wait(remaining);
+        }
+        if (complete || (acked > before && !resendRequested))
+            return true;
+        resendRequested = false;
+        for (Chunk chunk : unacked) {
+            if (!msgOutQueue.offer(toMsgEvent(chunk)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Builds the message carrying a chunk
+     * @param chunk         Chunk to send
+     * @return              Chunk message
+     */
+    private MsgEvent toMsgEvent(Chunk chunk) {
+        MsgEvent msg = new MsgEvent(template.getMsgType(), template.getMsgRegion(), template.getMsgAgent(),
+                template.getMsgPlugin(), template.getParams());
+        msg.setParam(PARAM_ID, streamId);
+        msg.setParam(PARAM_ACTION, ACTION_CHUNK);
+        msg.setParam(PARAM_SEQ, String.valueOf(chunk.seq));
+        msg.setParam(PARAM_DATA, DatatypeConverter.printBase64Binary(chunk.data));
+        msg.setParam(PARAM_CRC, Long.toHexString(chunk.crc));
+        msg.setParam(PARAM_WINDOW, String.valueOf(window));
+        if (chunk.last)
+            msg.setParam(PARAM_LAST, Boolean.TRUE.toString());
+        return msg;
+    }
+
+    /**
+     * Chunk awaiting acknowledgement
+     */
+    private static class Chunk {
+        /** Sequence number */
+        final long seq;
+        /** Raw payload */
+        final byte[] data;
+        /** CRC32 of the raw payload */
+        final long crc;
+        /** Whether this is the final chunk */
+        final boolean last;
+
+        Chunk(long seq, byte[] data, long crc, boolean last) {
+            this.seq = seq;
+            this.data = data;
+            this.crc = crc;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Stream identification getter
+     * @return          Identifier of this stream
+     */
+    public String getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Chunk size getter
+     * @return          Current chunk payload size (in bytes)
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Chunk size setter
+     * @param chunkSize New chunk payload size (in bytes)
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("chunkSize must be positive");
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Window getter
+     * @return          Current initial credit (in chunks)
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Window setter
+     * @param window    New initial credit (in chunks)
+     */
+    public void setWindow(int window) {
+        if (window <= 0)
+            throw new IllegalArgumentException("window must be positive");
+        this.window = window;
+    }
+
+    /**
+     * Acknowledgement timeout getter
+     * @return          Current acknowledgement timeout (in milliseconds)
+     */
+    public long getAckTimeout() {
+        return ackTimeout;
+    }
+
+    /**
+     * Acknowledgement timeout setter
+     * @param ackTimeout    New acknowledgement timeout (in milliseconds)
+     */
+    public void setAckTimeout(long ackTimeout) {
+        this.ackTimeout = ackTimeout;
+    }
+
+    /**
+     * Retry limit getter
+     * @return          Current number of consecutive retransmissions before giving up
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Retry limit setter
+     * @param maxRetries    New number of consecutive retransmissions before giving up
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+}
@@ -0,0 +1,148 @@
+package com.researchworx.cresco.library.messaging;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Cresco distributed trace context
+ *
+ * Immutable trace and span identifiers carried between components in {@link MsgEvent} parameters. Identifiers
+ * are 64-bit values drawn from {@link ThreadLocalRandom} and rendered as 16 hex characters, which is far cheaper
+ * than the {@code SecureRandom} behind {@link java.util.UUID#randomUUID()}.
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public final class TraceContext {
+    /** Parameter holding the trace identifier */
+    public static final String PARAM_TRACE_ID = "trace_id";
+    /** Parameter holding the span identifier */
+    public static final String PARAM_SPAN_ID = "span_id";
+    /** Parameter holding the parent span identifier */
+    public static final String PARAM_PARENT_ID = "parent_id";
+    /** Parameter holding the sampling decision */
+    public static final String PARAM_SAMPLED = "trace_sampled";
+    /** Hex digits */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Trace identifier shared by all spans of a trace */
+    private final String traceId;
+    /** Identifier of this span */
+    private final String spanId;
+    /** Identifier of the parent span, null for a root span */
+    private final String parentId;
+    /** Whether spans of this trace are recorded */
+    private final boolean sampled;
+
+    /**
+     * Constructor
+     * @param traceId       Trace identifier
+     * @param spanId        Span identifier
+     * @param parentId      Parent span identifier, null for a root span
+     * @param sampled       Whether spans of this trace are recorded
+     */
+    public TraceContext(String traceId, String spanId, String parentId, boolean sampled) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentId = parentId;
+        this.sampled = sampled;
+    }
+
+    /**
+     * Starts a new trace
+     * @param sampled       Whether spans of the trace are recorded
+     * @return              Root context of the new trace
+     */
+    public static TraceContext newRoot(boolean sampled) {
+        String id = newId();
+        return new TraceContext(id, id, null, sampled);
+    }
+
+    /**
+     * Creates a child span of this context
+     * @return              Context of the child span
+     */
+    public TraceContext child() {
+        return new TraceContext(traceId, newId(), spanId, sampled);
+    }
+
+    /**
+     * Reads the trace context carried by a message
+     * @param msg           Message to read
+     * @return              The carried context, null if the message carries none
+     */
+    public static TraceContext fromMsgEvent(MsgEvent msg) {
+        if (msg.getParams() == null)
+            return null;
+        String traceId = msg.getParam(PARAM_TRACE_ID);
+        String spanId = msg.getParam(PARAM_SPAN_ID);
+        if (traceId == null || spanId == null)
+            return null;
+        return new TraceContext(traceId, spanId, msg.getParam(PARAM_PARENT_ID),
+                "1".equals(msg.getParam(PARAM_SAMPLED)));
+    }
+
+    /**
+     * Writes this context into a message
+     * @param msg           Message to write
+     */
+    public void inject(MsgEvent msg) {
+        msg.setParam(PARAM_TRACE_ID, traceId);
+        msg.setParam(PARAM_SPAN_ID, spanId);
+        if (parentId != null)
+            msg.setParam(PARAM_PARENT_ID, parentId);
+        else
+            msg.removeParam(PARAM_PARENT_ID);
+        msg.setParam(PARAM_SAMPLED, sampled ? "1" : "0");
+    }
+
+    /**
+     * Generates a random 64-bit identifier
+     * @return              Identifier as 16 hex characters
+     */
+    public static String newId() {
+        long id = ThreadLocalRandom.current().nextLong();
+        char[] chars = new char[16];
+        for (int i = 15; i >= 0; i--) {
+            chars[i] = HEX[(int) (id & 0xf)];
+            id >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Trace identification getter
+     * @return          Trace identifier
+     */
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * Span identification getter
+     * @return          Span identifier
+     */
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * Parent span identification getter
+     * @return          Parent span identifier, null for a root span
+     */
+    public String getParentId() {
+        return parentId;
+    }
+
+    /**
+     * Sampling decision getter
+     * @return          Whether spans of this trace are recorded
+     */
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    @Override
+    public String toString() {
+        return traceId + ":" + spanId + ":" + (parentId != null ? parentId : "") + ":" + (sampled ? "1" : "0");
+    }
+}
@@ -0,0 +1,284 @@
+package com.researchworx.cresco.library.messaging;
+
+import com.google.gson.stream.JsonWriter;
+import com.researchworx.cresco.library.core.Identity;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Cresco span recorder
+ *
+ * Tracks the {@link TraceContext} active on each thread and records finished spans of sampled traces into a
+ * fixed-size ring buffer. Recorded spans are exported as batched INFO messages; when the buffer is full the
+ * oldest spans are overwritten and counted as dropped. Spans remember the identity of the component that
+ * recorded them, so a tracer shared by several plugins exports each span under its own source.
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public class Tracer {
+    /** Value of the action parameter on exported span batches */
+    public static final String EXPORT_ACTION = "trace_export";
+    /** Default span buffer capacity */
+    public static final int DEFAULT_CAPACITY = 4096;
+    /** Default fraction of new traces that are sampled */
+    public static final double DEFAULT_SAMPLE_RATE = 0.01d;
+    /** Maximum spans per exported message */
+    private static final int EXPORT_BATCH = 256;
+    /** Shared instance */
+    private static final Tracer DEFAULT = new Tracer(DEFAULT_CAPACITY, DEFAULT_SAMPLE_RATE);
+    /** Context active on each thread */
+    private static final ThreadLocal<TraceContext> CURRENT = new ThreadLocal<>();
+
+    /** Fraction of new traces that are sampled */
+    private volatile double sampleRate;
+    /** Span names */
+    private final String[] names;
+    /** Span contexts */
+    private final TraceContext[] contexts;
+    /** Span start times (in milliseconds since the epoch) */
+    private final long[] starts;
+    /** Span durations (in microseconds) */
+    private final long[] durations;
+    /** Span outcomes */
+    private final boolean[] failed;
+    /** Identities of the components recording the spans, null for the exporter's own */
+    private final Identity[] owners;
+    /** Position of the oldest recorded span */
+    private int head = 0;
+    /** Number of recorded spans */
+    private int size = 0;
+    /** Spans overwritten before export */
+    private long dropped = 0L;
+
+    /**
+     * Constructor
+     * @param capacity      Span buffer capacity
+     * @param sampleRate    Fraction of new traces that are sampled
+     */
+    public Tracer(int capacity, double sampleRate) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.sampleRate = sampleRate;
+        names = new String[capacity];
+        contexts = new TraceContext[capacity];
+        starts = new long[capacity];
+        durations = new long[capacity];
+        failed = new boolean[capacity];
+        owners = new Identity[capacity];
+    }
+
+    /**
+     * Shared instance getter
+     * @return          The tracer used by the library components
+     */
+    public static Tracer getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Context of the current thread
+     * @return          The active context, null if none
+     */
+    public static TraceContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Makes a context active on the current thread
+     * @param context   Context to activate, null to clear
+     * @return          The previously active context, to be restored when done
+     */
+    public static TraceContext activate(TraceContext context) {
+        TraceContext previous = CURRENT.get();
+        if (context != null)
+            CURRENT.set(context);
+        else
+            CURRENT.remove();
+        return previous;
+    }
+
+    /**
+     * Makes the context carried by an inbound message active on the current thread
+     * <p>The library does not dispatch inbound messages, so message handlers call this before processing a
+     * message and restore the returned context in a finally block; logs and calls issued while handling it then
+     * join the sender's trace.</p>
+     * @param msg       Inbound message
+     * @return          The previously active context, to be restored when done
+     */
+    public static TraceContext activate(MsgEvent msg) {
+        return activate(TraceContext.fromMsgEvent(msg));
+    }
+
+    /**
+     * Creates the context for a new span, continuing the current thread's trace if there is one
+     * @return          Context of the new span
+     */
+    public TraceContext nextSpan() {
+        TraceContext parent = CURRENT.get();
+        if (parent != null)
+            return parent.child();
+        return TraceContext.newRoot(sampleRate > 0d && ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+
+    /**
+     * Records a finished span if its trace is sampled, reported under the identity of the exporter
+     * @param name          Operation name
+     * @param context       Context of the span
+     * @param startMillis   Start time (in milliseconds since the epoch)
+     * @param durationNanos Duration (in nanoseconds)
+     * @param error         Whether the operation failed
+     */
+    public void record(String name, TraceContext context, long startMillis, long durationNanos, boolean error) {
+        record(name, context, startMillis, durationNanos, error, null);
+    }
+
+    /**
+     * Records a finished span if its trace is sampled
+     * @param name          Operation name
+     * @param context       Context of the span
+     * @param startMillis   Start time (in milliseconds since the epoch)
+     * @param durationNanos Duration (in nanoseconds)
+     * @param error         Whether the operation failed
+     * @param owner         Identity of the component recording the span, null for the exporter's own
+     */
+    public void record(String name, TraceContext context, long startMillis, long durationNanos, boolean error,
+                       Identity owner) {
+        if (!context.isSampled())
+            return;
+        synchronized (this) {
+            int pos;
+            if (size == names.length) {
+                pos = head;
+                head = (head + 1) % names.length;
+                dropped++;
+            } else {
+                pos = (head + size) % names.length;
+                size++;
+            }
+            names[pos] = name;
+            contexts[pos] = context;
+            starts[pos] = startMillis;
+            durations[pos] = durationNanos / 1000L;
+            failed[pos] = error;
+            owners[pos] = owner;
+        }
+    }
+
+    /**
+     * Removes all recorded spans and packs them into export messages, one or more per recording identity
+     * @param region        Region reporting the spans recorded without an identity
+     * @param agent         Agent reporting the spans recorded without an identity
+     * @param pluginID      Plugin ID reporting the spans recorded without an identity
+     * @return              Export messages, empty if no spans were recorded
+     */
+    public List<MsgEvent> export(String region, String agent, String pluginID) {
+        Identity exporter = new Identity(region, agent, pluginID);
+        Map<Identity, StringWriter> outs = new LinkedHashMap<>();
+        Map<Identity, JsonWriter> writers = new LinkedHashMap<>();
+        Map<Identity, Integer> counts = new LinkedHashMap<>();
+        List<MsgEvent> batches = new ArrayList<>();
+        long lost;
+        try {
+            synchronized (this) {
+                lost = dropped;
+                dropped = 0L;
+                while (size > 0) {
+                    int pos = head;
+                    Identity owner = owners[pos] != null ? owners[pos] : exporter;
+                    JsonWriter writer = writers.get(owner);
+                    if (writer == null) {
+                        StringWriter out = new StringWriter();
+                        writer = new JsonWriter(out);
+                        writer.beginArray();
+                        outs.put(owner, out);
+                        writers.put(owner, writer);
+                        counts.put(owner, 0);
+                    }
+                    TraceContext context = contexts[pos];
+                    writer.beginObject();
+                    writer.name("name").value(names[pos]);
+                    writer.name(TraceContext.PARAM_TRACE_ID).value(context.getTraceId());
+                    writer.name(TraceContext.PARAM_SPAN_ID).value(context.getSpanId());
+                    if (context.getParentId() != null)
+                        writer.name(TraceContext.PARAM_PARENT_ID).value(context.getParentId());
+                    writer.name("start").value(starts[pos]);
+                    writer.name("duration_us").value(durations[pos]);
+                    writer.name("error").value(failed[pos]);
+                    writer.endObject();
+                    names[pos] = null;
+                    contexts[pos] = null;
+                    owners[pos] = null;
+                    head = (head + 1) % names.length;
+                    size--;
+                    int count = counts.get(owner) + 1;
+                    if (count < EXPORT_BATCH) {
+                        counts.put(owner, count);
+                        continue;
+                    }
+                    batches.add(toBatch(owner, outs.remove(owner), writers.remove(owner), count, lost));
+                    counts.remove(owner);
+                    lost = 0L;
+                }
+            }
+            for (Map.Entry<Identity, JsonWriter> entry : writers.entrySet()) {
+                Identity owner = entry.getKey();
+                batches.add(toBatch(owner, outs.get(owner), entry.getValue(), counts.get(owner), lost));
+                lost = 0L;
+            }
+        } catch (IOException e) {
+            // StringWriter never throws
+            throw new IllegalStateException(e);
+        }
+        return batches;
+    }
+
+    /**
+     * Builds the export message of a batch of spans
+     * @param owner         Identity reporting the spans
+     * @param out           Buffer holding the spans
+     * @param writer        Writer of the spans, closed by this call
+     * @param count         Number of spans in the batch
+     * @param lost          Spans overwritten before export, reported on the first batch
+     * @return              Export message
+     * @throws IOException  Never, the buffer being in memory
+     */
+    private static MsgEvent toBatch(Identity owner, StringWriter out, JsonWriter writer, int count, long lost)
+            throws IOException {
+        writer.endArray();
+        writer.close();
+        MsgEvent batch = new MsgEvent(MsgEvent.Type.INFO, owner.getRegion(), null, null, "Trace span export");
+        batch.setParam("src_region", owner.getRegion());
+        batch.setParam("src_agent", owner.getAgent());
+        batch.setParam("src_plugin", owner.getPluginID());
+        batch.setParam("dst_region", owner.getRegion());
+        batch.setParam("action", EXPORT_ACTION);
+        batch.setParam("span_count", String.valueOf(count));
+        if (lost > 0L)
+            batch.setParam("spans_dropped", String.valueOf(lost));
+        batch.setCompressedParam("spans", out.toString());
+        return batch;
+    }
+
+    /**
+     * Sample rate getter
+     * @return          Current fraction of new traces that are sampled
+     */
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Sample rate setter
+     * @param sampleRate    New fraction of new traces that are sampled
+     */
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+}
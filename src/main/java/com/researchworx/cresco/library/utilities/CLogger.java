@@ -1,6 +1,12 @@
 package com.researchworx.cresco.library.utilities;
 
+import com.researchworx.cresco.library.core.Identity;
+import com.researchworx.cresco.library.core.SharedIdentity;
+import com.researchworx.cresco.library.messaging.FlowController;
 import com.researchworx.cresco.library.messaging.MsgEvent;
+import com.researchworx.cresco.library.messaging.MsgEventStore;
+import com.researchworx.cresco.library.messaging.TraceContext;
+import com.researchworx.cresco.library.messaging.Tracer;
 
 import java.util.Date;
 import java.util.concurrent.BlockingQueue;
@@ -21,25 +27,33 @@ public class CLogger {
             return check.getValue() <= this.getValue();
         }
     }
-    private String region;
-    private String agent;
-    private String plugin;
+    private final SharedIdentity identity;
     private Level level;
     private BlockingQueue<MsgEvent> msgOutQueue;
     private Class issuingClass;
+    private volatile LogRateLimiter rateLimiter;
+    private volatile FlowController flowController;
+    private volatile MsgEventStore eventStore;
 
     public CLogger(BlockingQueue<MsgEvent> msgOutQueue, String region, String agent, String plugin) {
         this(msgOutQueue, region, agent, plugin, Level.Info);
     }
 
     public CLogger(BlockingQueue<MsgEvent> msgOutQueue, String region, String agent, String plugin, Level level) {
-        this.region = region;
-        this.agent = agent;
-        this.plugin = plugin;
+        this(msgOutQueue, new SharedIdentity(region, agent, plugin), level);
+    }
+
+    public CLogger(BlockingQueue<MsgEvent> msgOutQueue, SharedIdentity identity, Level level) {
+        this.identity = identity;
         this.level = level;
         this.msgOutQueue = msgOutQueue;
     }
 
+    public CLogger(Class issuingClass, BlockingQueue<MsgEvent> msgOutQueue, SharedIdentity identity, Level level) {
+        this(msgOutQueue, identity, level);
+        this.issuingClass = issuingClass;
+    }
+
     public CLogger(Class issuingClass, BlockingQueue<MsgEvent> msgOutQueue, String region, String agent, String plugin) {
         this(msgOutQueue, region, agent, plugin);
         this.issuingClass = issuingClass;
@@ -56,8 +70,8 @@ public class CLogger {
     }
 
     public void error(String logMessage, Object ... params) {
-        if (!level.toShow(Level.Error)) return;
-        error(replaceBrackets(logMessage, params));
+        if (!level.toShow(Level.Error) || !permit(logMessage, Level.Error)) return;
+        send(replaceBrackets(logMessage, params), Level.Error);
     }
 
     public void warn(String logMessage) {
@@ -66,8 +80,8 @@ public class CLogger {
     }
 
     public void warn(String logMessage, Object ... params) {
-        if (!level.toShow(Level.Warn)) return;
-        warn(replaceBrackets(logMessage, params));
+        if (!level.toShow(Level.Warn) || !permit(logMessage, Level.Warn)) return;
+        send(replaceBrackets(logMessage, params), Level.Warn);
     }
 
     public void info(String logMessage) {
@@ -76,8 +90,8 @@ public class CLogger {
     }
 
     public void info(String logMessage, Object ... params) {
-        if (!level.toShow(Level.Info)) return;
-        info(replaceBrackets(logMessage, params));
+        if (!level.toShow(Level.Info) || !permit(logMessage, Level.Info)) return;
+        send(replaceBrackets(logMessage, params), Level.Info);
     }
 
     public void debug(String logMessage) {
@@ -86,8 +100,8 @@ public class CLogger {
     }
 
     public void debug(String logMessage, Object ... params) {
-        if (!level.toShow(Level.Debug)) return;
-        debug(replaceBrackets(logMessage, params));
+        if (!level.toShow(Level.Debug) || !permit(logMessage, Level.Debug)) return;
+        send(replaceBrackets(logMessage, params), Level.Debug);
     }
 
     public void trace(String logMessage) {
@@ -96,30 +110,25 @@ public class CLogger {
     }
 
     public void trace(String logMessage, Object ... params) {
-        if (!level.toShow(Level.Trace)) return;
-        trace(replaceBrackets(logMessage, params));
+        if (!level.toShow(Level.Trace) || !permit(logMessage, Level.Trace)) return;
+        send(replaceBrackets(logMessage, params), Level.Trace);
     }
 
     public void log(String logMessage, Level level) {
-        MsgEvent toSend = new MsgEvent(MsgEvent.Type.LOG, region, null, null, logMessage);
-        toSend.setParam("src_region", region);
-        if (agent != null) {
-            toSend.setParam("src_agent", agent);
-            if (plugin != null)
-                toSend.setParam("src_plugin", plugin);
-        }
-        if (issuingClass != null) {
-            toSend.setParam("class", issuingClass.getSimpleName());
-            toSend.setParam("full_class", issuingClass.getCanonicalName());
-        }
-        toSend.setParam("ts", String.valueOf(new Date().getTime()));
-        toSend.setParam("dst_region", region);
-        toSend.setParam("log_level", level.name());
-        log(toSend);
+        if (!permit(logMessage, level)) return;
+        send(logMessage, level);
     }
 
     public void log(MsgEvent logMessage) {
-        msgOutQueue.offer(logMessage);
+        MsgEventStore store = eventStore;
+        // Only logs and KPIs are kept locally, the rest is of no use once delivered
+        if (store != null && (logMessage.getMsgType() == MsgEvent.Type.LOG || logMessage.getMsgType() == MsgEvent.Type.KPI))
+            store.append(logMessage);
+        FlowController flow = flowController;
+        if (flow != null)
+            flow.trySend(logMessage);
+        else
+            msgOutQueue.offer(logMessage);
     }
 
     public Level getLogLevel() {
@@ -130,6 +139,66 @@ public class CLogger {
         this.level = level;
     }
 
+    public SharedIdentity getIdentity() {
+        return identity;
+    }
+
+    public LogRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public void setRateLimiter(LogRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public FlowController getFlowController() {
+        return flowController;
+    }
+
+    public void setFlowController(FlowController flowController) {
+        this.flowController = flowController;
+    }
+
+    public MsgEventStore getEventStore() {
+        return eventStore;
+    }
+
+    public void setEventStore(MsgEventStore eventStore) {
+        this.eventStore = eventStore;
+    }
+
+    private boolean permit(String template, Level level) {
+        LogRateLimiter limiter = rateLimiter;
+        return limiter == null || limiter.permit(this, template, level);
+    }
+
+    private void send(String logMessage, Level level) {
+        log(buildLog(logMessage, level));
+    }
+
+    MsgEvent buildLog(String logMessage, Level level) {
+        Identity id = identity.get();
+        String region = id.getRegion();
+        MsgEvent toSend = new MsgEvent(MsgEvent.Type.LOG, region, null, null, logMessage);
+        toSend.setParam("src_region", region);
+        if (id.getAgent() != null) {
+            toSend.setParam("src_agent", id.getAgent());
+            if (id.getPluginID() != null)
+                toSend.setParam("src_plugin", id.getPluginID());
+        }
+        if (issuingClass != null) {
+            toSend.setParam("class", issuingClass.getSimpleName());
+            toSend.setParam("full_class", issuingClass.getCanonicalName());
+        }
+        toSend.setParam("ts", String.valueOf(new Date().getTime()));
+        toSend.setParam("dst_region", region);
+        toSend.setParam("log_level", level.name());
+        TraceContext trace = Tracer.current();
+        if (trace != null)
+            trace.inject(toSend);
+        return toSend;
+    }
+
     private String replaceBrackets(String logMessage, Object ... params) {
         int replaced = 0;
         while (logMessage.contains("{}") && replaced < params.length) {
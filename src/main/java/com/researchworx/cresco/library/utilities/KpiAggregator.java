@@ -0,0 +1,470 @@
+package com.researchworx.cresco.library.utilities;
+
+import com.researchworx.cresco.library.core.Config;
+import com.researchworx.cresco.library.messaging.MsgEvent;
+
+import java.io.Closeable;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cresco KPI aggregator
+ *
+ * Accumulates raw metric samples locally and emits one KPI event per metric and window instead of one per
+ * sample. Samples land in lock-striped primitive accumulators (count, sum, min, max and a
+ * {@link QuantileSketch}), which are drained at the end of every window of the finest resolution. Coarser
+ * resolutions are rolled up from the finer windows, so recording a sample costs the same however many
+ * resolutions are configured. Windows are aligned on multiples of their resolution and only windows holding
+ * samples are emitted. A metric receiving no sample for a whole window of the coarsest resolution stops being
+ * tracked, freeing its place for another one.
+ * <p>Aggregators are closed with {@link #close()}, which emits the windows still open. An aggregator that is
+ * no longer referenced is not kept alive by the shared timer, but the samples of its open windows are lost.</p>
+ * <p>Each rollup is a KPI event carrying kpi_name, kpi_window (resolution in milliseconds), kpi_start (window
+ * start in milliseconds), count, sum, min, max, one p&lt;n&gt; parameter per configured percentile and,
+ * optionally, the encoded sketch in kpi_sketch so rollups can be merged further upstream.</p>
+ * <p>Recognized configuration entries:</p>
+ * <ul>
+ *     <li>kpi_resolutions - comma-separated window lengths in milliseconds, each a multiple of the first
+ *     (default 10000,60000,300000)</li>
+ *     <li>kpi_percentiles - comma-separated percentiles to emit (default 50,90,99)</li>
+ *     <li>kpi_accuracy - relative accuracy of the percentiles (default 0.01)</li>
+ *     <li>kpi_max_metrics - metrics tracked before new ones are refused (default 1024)</li>
+ *     <li>kpi_sketch - whether rollups carry the encoded sketch (default false)</li>
+ * </ul>
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public class KpiAggregator implements Closeable {
+    /** Timer shared by all aggregators for window boundaries */
+    private static final Timer WINDOW_TIMER = new Timer("KpiAggregator", true);
+    /** Number of accumulators per metric, a power of two */
+    private static final int STRIPES = stripes();
+
+    /** Logger used to emit rollups */
+    private final CLogger logger;
+    /** Region reported as the source of rollups */
+    private final String region;
+    /** Agent reported as the source of rollups */
+    private final String agent;
+    /** Plugin reported as the source of rollups */
+    private final String plugin;
+    /** Window lengths (in milliseconds), finest first */
+    private final long[] resolutions;
+    /** Percentiles emitted, between 0 and 100 */
+    private final double[] percentiles;
+    /** Relative accuracy of the percentiles */
+    private final double accuracy;
+    /** Metrics tracked before new ones are refused */
+    private final int maxMetrics;
+    /** Whether rollups carry the encoded sketch */
+    private final boolean includeSketch;
+    /** Metrics by name */
+    private final ConcurrentHashMap<String, Metric> metrics = new ConcurrentHashMap<>();
+    /** End of the last window emitted at the finest resolution */
+    private long lastBoundary;
+    /** Window boundary task */
+    private final TimerTask windowTask;
+    /** Whether the aggregator was closed */
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor
+     * @param logger        Logger used to emit rollups
+     * @param region        Region reported as the source of rollups
+     * @param agent         Agent reported as the source of rollups
+     * @param plugin        Plugin reported as the source of rollups
+     * @param config        Configuration to read resolutions and percentiles from
+     */
+    public KpiAggregator(CLogger logger, String region, String agent, String plugin, Config config) {
+        this(logger, region, agent, plugin,
+                parseLongs(config.getStringParam("kpi_resolutions", "10000,60000,300000")),
+                parse(config.getStringParam("kpi_percentiles", "50,90,99")),
+                config.getDoubleParam("kpi_accuracy", QuantileSketch.DEFAULT_ACCURACY),
+                config.getIntegerParam("kpi_max_metrics", 1024),
+                config.getBooleanParam("kpi_sketch", false));
+    }
+
+    /**
+     * Constructor
+     * @param logger        Logger used to emit rollups
+     * @param region        Region reported as the source of rollups
+     * @param agent         Agent reported as the source of rollups
+     * @param plugin        Plugin reported as the source of rollups
+     * @param resolutions   Window lengths (in milliseconds), each a multiple of the first
+     * @param percentiles   Percentiles emitted, between 0 and 100
+     * @param accuracy      Relative accuracy of the percentiles
+     * @param maxMetrics    Metrics tracked before new ones are refused
+     * @param includeSketch Whether rollups carry the encoded sketch
+     */
+    public KpiAggregator(CLogger logger, String region, String agent, String plugin, long[] resolutions,
+                         double[] percentiles, double accuracy, int maxMetrics, boolean includeSketch) {
+        if (resolutions.length == 0)
+            throw new IllegalArgumentException("At least one resolution is required");
+        this.resolutions = resolutions.clone();
+        Arrays.sort(this.resolutions);
+        for (long resolution : this.resolutions) {
+            if (resolution <= 0 || resolution % this.resolutions[0] != 0)
+                throw new IllegalArgumentException("Resolutions must be positive multiples of the finest one");
+        }
+        this.logger = logger;
+        this.region = region;
+        this.agent = agent;
+        this.plugin = plugin;
+        this.percentiles = percentiles.clone();
+        this.accuracy = accuracy;
+        this.maxMetrics = maxMetrics;
+        this.includeSketch = includeSketch;
+        long base = this.resolutions[0];
+        long now = System.currentTimeMillis();
+        this.lastBoundary = now - now % base;
+        this.windowTask = new WindowTask(this);
+        WINDOW_TIMER.scheduleAtFixedRate(windowTask, base - now % base, base);
+    }
+
+    /**
+     * Records a sample
+     * @param metric        Metric name
+     * @param value         Sample value
+     * @return              Whether the sample was recorded, false once too many metrics are tracked or once closed
+     */
+    public boolean record(String metric, double value) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        while (!closed) {
+            Metric m = metricFor(metric);
+            if (m == null)
+                return false;
+            // Refused if the metric was just dropped as idle, in which case its successor takes the sample
+            if (m.stripes[stripe].add(value))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stops emitting rollups, after emitting the samples of every window still open
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        windowTask.cancel();
+        WINDOW_TIMER.purge();
+        flush(true);
+    }
+
+    /**
+     * Returns the accumulators of a metric, creating them if needed
+     * @param metric        Metric name
+     * @return              The accumulators, null once too many metrics are tracked
+     */
+    private Metric metricFor(String metric) {
+        Metric m = metrics.get(metric);
+        if (m == null) {
+            if (metrics.size() >= maxMetrics)
+                return null;
+            Metric created = new Metric();
+            m = metrics.putIfAbsent(metric, created);
+            if (m == null)
+                m = created;
+        }
+        return m;
+    }
+
+    /**
+     * Closes every window of the finest resolution ended since the last flush, one boundary after the other so
+     * that coarser windows close on their own boundaries, and emits their rollups
+     * <p>Samples are not timestamped, so those drained by a late flush are counted in the first window it
+     * closes.</p>
+     * @param last          Whether to also close every window not ended yet
+     */
+    private void flush(boolean last) {
+        flush(last, System.currentTimeMillis());
+    }
+
+    /**
+     * Closes every window of the finest resolution ended by a given time
+     * @param last          Whether to also close every window not ended yet
+     * @param now           Current time (in milliseconds)
+     */
+    synchronized void flush(boolean last, long now) {
+        long base = resolutions[0];
+        long coarsest = resolutions[resolutions.length - 1];
+        long target = now - now % base;
+        // An early tick closes the window about to end
+        if (target <= lastBoundary && lastBoundary + base <= now + base / 2)
+            target = lastBoundary + base;
+        boolean drained = false;
+        while (lastBoundary + base <= target) {
+            long boundary = lastBoundary + base;
+            closeWindows(boundary, !drained, false);
+            drained = true;
+            lastBoundary = boundary;
+            // Every window is empty once the coarsest one closed, so the remaining boundaries have nothing to emit
+            if (boundary % coarsest == 0)
+                lastBoundary = Math.max(lastBoundary, target - target % coarsest);
+        }
+        if (last)
+            closeWindows(lastBoundary + base, !drained, true);
+    }
+
+    /**
+     * Closes the finest window ending at a boundary and every coarser window ending with it
+     * @param boundary      End of the finest window (in milliseconds)
+     * @param drain         Whether to move the samples of the accumulators into the finest window
+     * @param last          Whether to close every window, even those not ended yet
+     */
+    private void closeWindows(long boundary, boolean drain, boolean last) {
+        int coarsest = resolutions.length - 1;
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            Metric metric = entry.getValue();
+            Rollup window = metric.rollups[0];
+            if (drain) {
+                for (Stripe stripe : metric.stripes)
+                    stripe.drainTo(window);
+            }
+            for (int i = 1; i < resolutions.length; i++)
+                metric.rollups[i].merge(window);
+            boolean idle = false;
+            for (int i = 0; i < resolutions.length; i++) {
+                if (boundary % resolutions[i] != 0 && !last)
+                    continue;
+                Rollup rollup = metric.rollups[i];
+                if (rollup.count > 0) {
+                    long start = boundary - 1 - (boundary - 1) % resolutions[i];
+                    emit(entry.getKey(), resolutions[i], start, rollup);
+                } else if (i == coarsest) {
+                    idle = true;
+                }
+                rollup.clear();
+            }
+            if (idle && !last)
+                evict(entry.getKey(), metric);
+        }
+    }
+
+    /**
+     * Stops tracking a metric, handing samples recorded meanwhile to a new instance
+     * @param name          Metric name
+     * @param metric        Accumulators of the metric, every rollup empty
+     */
+    private void evict(String name, Metric metric) {
+        metrics.remove(name, metric);
+        Rollup late = new Rollup();
+        for (Stripe stripe : metric.stripes)
+            stripe.retire(late);
+        if (late.count == 0)
+            return;
+        Metric successor = metricFor(name);
+        if (successor != null)
+            successor.stripes[0].absorb(late);
+    }
+
+    /**
+     * Emits the rollup of a window as a KPI event
+     * @param metric        Metric name
+     * @param resolution    Window length (in milliseconds)
+     * @param start         Window start (in milliseconds)
+     * @param rollup        Statistics of the window
+     */
+    private void emit(String metric, long resolution, long start, Rollup rollup) {
+        MsgEvent kpi = new MsgEvent(MsgEvent.Type.KPI, region, agent, plugin, "KPI rollup");
+        kpi.setSrc(region, agent, plugin);
+        kpi.setDst(region, null, null);
+        kpi.setParam("kpi_name", metric);
+        kpi.setParam("kpi_window", String.valueOf(resolution));
+        kpi.setParam("kpi_start", String.valueOf(start));
+        kpi.setParam("count", String.valueOf(rollup.count));
+        kpi.setParam("sum", String.valueOf(rollup.sum));
+        kpi.setParam("min", String.valueOf(rollup.min));
+        kpi.setParam("max", String.valueOf(rollup.max));
+        for (double percentile : percentiles) {
+            // Bucket values are only accurate to a few percent, so keep them within the observed range
+            double value = Math.max(rollup.min, Math.min(rollup.max, rollup.sketch.quantile(percentile / 100d)));
+            kpi.setParam("p" + label(percentile), String.valueOf(value));
+        }
+        if (includeSketch)
+            kpi.setParam("kpi_sketch", rollup.sketch.encode());
+        logger.log(kpi);
+    }
+
+    /**
+     * Returns the parameter suffix of a percentile, e.g. 99 or 99.9
+     * @param percentile    Percentile
+     * @return              Suffix
+     */
+    private static String label(double percentile) {
+        return percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile);
+    }
+
+    /**
+     * Parses a comma-separated list of numbers
+     * @param list          List to parse
+     * @return              The numbers
+     */
+    private static double[] parse(String list) {
+        String[] parts = list.split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            values[i] = Double.parseDouble(parts[i].trim());
+        return values;
+    }
+
+    /**
+     * Parses a comma-separated list of whole numbers
+     * @param list          List to parse
+     * @return              The numbers
+     */
+    private static long[] parseLongs(String list) {
+        String[] parts = list.split(",");
+        long[] values = new long[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            values[i] = Long.parseLong(parts[i].trim());
+        return values;
+    }
+
+    /**
+     * Returns the number of stripes per metric, the processor count rounded up to a power of two
+     * @return              Number of stripes
+     */
+    private static int stripes() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return Integer.highestOneBit(Math.max(1, processors - 1)) << 1;
+    }
+
+    /**
+     * Timer task flushing an aggregator, without keeping it from being collected
+     */
+    private static final class WindowTask extends TimerTask {
+        /** Aggregator to flush */
+        private final WeakReference<KpiAggregator> aggregator;
+
+        WindowTask(KpiAggregator aggregator) {
+            this.aggregator = new WeakReference<>(aggregator);
+        }
+
+        @Override
+        public void run() {
+            KpiAggregator target = aggregator.get();
+            if (target == null)
+                cancel();
+            else
+                target.flush(false);
+        }
+    }
+
+    /**
+     * Accumulators and pending rollups of one metric
+     */
+    private final class Metric {
+        /** Accumulators receiving samples */
+        private final Stripe[] stripes = new Stripe[STRIPES];
+        /** Pending rollups by resolution, only touched while flushing */
+        private final Rollup[] rollups = new Rollup[resolutions.length];
+
+        Metric() {
+            for (int i = 0; i < stripes.length; i++)
+                stripes[i] = new Stripe();
+            for (int i = 0; i < rollups.length; i++)
+                rollups[i] = new Rollup();
+        }
+    }
+
+    /**
+     * Statistics of a set of samples
+     */
+    private class Rollup {
+        /** Number of samples */
+        long count;
+        /** Sum of the samples */
+        double sum;
+        /** Smallest sample */
+        double min = Double.POSITIVE_INFINITY;
+        /** Largest sample */
+        double max = Double.NEGATIVE_INFINITY;
+        /** Distribution of the samples */
+        final QuantileSketch sketch = new QuantileSketch(accuracy, QuantileSketch.DEFAULT_MAX_BUCKETS);
+
+        /**
+         * Adds the samples of another rollup
+         * @param other         Rollup to add
+         */
+        void merge(Rollup other) {
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sketch.merge(other.sketch);
+        }
+
+        /**
+         * Removes every sample
+         */
+        void clear() {
+            count = 0;
+            sum = 0d;
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+            sketch.clear();
+        }
+    }
+
+    /**
+     * One lock of a metric's accumulators
+     */
+    private final class Stripe extends Rollup {
+        /** Whether the metric was dropped, refusing further samples */
+        private boolean retired = false;
+
+        /**
+         * Adds a sample
+         * @param value         Sample value
+         * @return              Whether the sample was added, false once the metric was dropped
+         */
+        synchronized boolean add(double value) {
+            if (retired)
+                return false;
+            count++;
+            sum += value;
+            if (value < min)
+                min = value;
+            if (value > max)
+                max = value;
+            sketch.add(value);
+            return true;
+        }
+
+        /**
+         * Adds the samples of a rollup
+         * @param rollup        Rollup to add
+         */
+        synchronized void absorb(Rollup rollup) {
+            merge(rollup);
+        }
+
+        /**
+         * Refuses further samples and moves those already added into a rollup
+         * @param rollup        Destination rollup
+         */
+        synchronized void retire(Rollup rollup) {
+            retired = true;
+            drainTo(rollup);
+        }
+
+        /**
+         * Moves the samples into a rollup
+         * @param rollup        Destination rollup
+         */
+        synchronized void drainTo(Rollup rollup) {
+            if (count == 0)
+                return;
+            rollup.merge(this);
+            clear();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.researchworx.cresco.library.utilities;
+
+import com.researchworx.cresco.library.core.Config;
+import com.researchworx.cresco.library.messaging.MsgEvent;
+
+import java.lang.ref.WeakReference;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Cresco logger rate limiter
+ *
+ * Applies a token bucket per log level and message template, plus probabilistic sampling of Info, Debug and
+ * Trace messages. Suppressed messages are counted and periodically reported as a single LOG event per template.
+ * <p>The summary timer and the buckets only hold weak references, so a limiter lives as long as a
+ * {@link CLogger} uses it and neither is kept alive by the other's summaries; {@link #cancel()} stops the
+ * summaries of a limiter still in use.</p>
+ * <p>Recognized configuration entries:</p>
+ * <ul>
+ *     <li>log_rate_limit - messages per second allowed per template, 0 disables rate limiting (default 0)</li>
+ *     <li>log_rate_burst - messages per template allowed in a burst (default log_rate_limit, at least 1)</li>
+ *     <li>log_sample_rate - fraction of Info, Debug and Trace messages to keep (default 1.0)</li>
+ *     <li>log_summary_interval - time between suppression summaries in milliseconds (default 60000)</li>
+ *     <li>log_rate_max_templates - templates tracked individually per level before sharing a bucket (default 1024)</li>
+ * </ul>
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public class LogRateLimiter {
+    /** Template reported for messages sharing the overflow bucket */
+    private static final String OVERFLOW_TEMPLATE = "(untracked messages)";
+    /** Timer shared by all limiters for suppression summaries */
+    private static final Timer SUMMARY_TIMER = new Timer("CLogger-RateLimiter", true);
+
+    /** Messages per second allowed per template, 0 to disable */
+    private final double rate;
+    /** Messages allowed in a burst per template */
+    private final double burst;
+    /** Fraction of Info, Debug and Trace messages to keep */
+    private final double sampleRate;
+    /** Templates tracked individually per level */
+    private final int maxTemplates;
+    /** Buckets by level and template */
+    private final Map<CLogger.Level, ConcurrentHashMap<String, Bucket>> buckets = new EnumMap<>(CLogger.Level.class);
+    /** Shared buckets by level for templates beyond {@link #maxTemplates} */
+    private final Map<CLogger.Level, Bucket> overflow = new EnumMap<>(CLogger.Level.class);
+    /** Periodic suppression summary */
+    private final TimerTask summaryTask;
+
+    /**
+     * Constructor
+     * @param config        Configuration to read limits from
+     */
+    public LogRateLimiter(Config config) {
+        this(config.getDoubleParam("log_rate_limit", 0d),
+                config.getDoubleParam("log_rate_burst", config.getDoubleParam("log_rate_limit", 0d)),
+                config.getDoubleParam("log_sample_rate", 1d),
+                config.getLongParam("log_summary_interval", 60000L),
+                config.getIntegerParam("log_rate_max_templates", 1024));
+    }
+
+    /**
+     * Constructor
+     * @param rate          Messages per second allowed per template, 0 to disable
+     * @param burst         Messages allowed in a burst per template
+     * @param sampleRate    Fraction of Info, Debug and Trace messages to keep
+     * @param interval      Time between suppression summaries (in milliseconds), positive
+     * @param maxTemplates  Templates tracked individually per level
+     */
+    public LogRateLimiter(double rate, double burst, double sampleRate, long interval, int maxTemplates) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("interval must be positive");
+        this.rate = Math.max(0d, rate);
+        this.burst = Math.max(1d, burst);
+        this.sampleRate = Math.min(1d, Math.max(0d, sampleRate));
+        this.maxTemplates = maxTemplates;
+        for (CLogger.Level level : CLogger.Level.values()) {
+            buckets.put(level, new ConcurrentHashMap<String, Bucket>());
+            overflow.put(level, new Bucket(this.burst));
+        }
+        summaryTask = new SummaryTask(this);
+        SUMMARY_TIMER.scheduleAtFixedRate(summaryTask, interval, interval);
+    }
+
+    /**
+     * Checks whether a message may be sent
+     * @param logger        Logger issuing the message, used to report suppressions
+     * @param template      Unformatted message template
+     * @param level         Level of the message
+     * @return              Whether the message may be sent
+     */
+    boolean permit(CLogger logger, String template, CLogger.Level level) {
+        boolean sampled = sampleRate < 1d && level.getValue() > CLogger.Level.Warn.getValue();
+        if (rate == 0d && !sampled)
+            return true;
+        Bucket bucket = bucketFor(logger, template, level);
+        if (sampled && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            bucket.suppress();
+            return false;
+        }
+        return rate == 0d ? bucket.pass() : bucket.tryAcquire(rate, burst);
+    }
+
+    /**
+     * Finds or creates the bucket of a template
+     * @param logger        Logger issuing the message
+     * @param template      Unformatted message template
+     * @param level         Level of the message
+     * @return              The bucket
+     */
+    private Bucket bucketFor(CLogger logger, String template, CLogger.Level level) {
+        ConcurrentHashMap<String, Bucket> levelBuckets = buckets.get(level);
+        Bucket bucket = levelBuckets.get(template);
+        if (bucket != null)
+            return bucket;
+        if (levelBuckets.size() >= maxTemplates) {
+            bucket = overflow.get(level);
+            bucket.setLogger(logger);
+            return bucket;
+        }
+        bucket = new Bucket(burst);
+        bucket.setLogger(logger);
+        Bucket existing = levelBuckets.putIfAbsent(template, bucket);
+        return existing != null ? existing : bucket;
+    }
+
+    /**
+     * Reports and resets suppression counts, and forgets idle templates
+     */
+    void summarize() {
+        for (CLogger.Level level : CLogger.Level.values()) {
+            Iterator<Map.Entry<String, Bucket>> it = buckets.get(level).entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Bucket> entry = it.next();
+                Bucket bucket = entry.getValue();
+                boolean idle = bucket.idle();
+                if (!report(bucket, entry.getKey(), level) && idle)
+                    it.remove();
+            }
+            Bucket shared = overflow.get(level);
+            report(shared, OVERFLOW_TEMPLATE, level);
+            shared.idle();
+        }
+    }
+
+    /**
+     * Emits the suppression summary of a bucket
+     * @param bucket        Bucket to report
+     * @param template      Template of the bucket
+     * @param level         Level of the bucket
+     * @return              Whether any messages had been suppressed
+     */
+    private boolean report(Bucket bucket, String template, CLogger.Level level) {
+        long suppressed = bucket.drainSuppressed();
+        CLogger logger = bucket.getLogger();
+        if (suppressed == 0L || logger == null)
+            return suppressed > 0L;
+        MsgEvent summary = logger.buildLog(suppressed + " similar messages suppressed: " + template, level);
+        summary.setParam("suppressed", String.valueOf(suppressed));
+        logger.log(summary);
+        return true;
+    }
+
+    /**
+     * Stops the periodic suppression summary
+     */
+    public void cancel() {
+        summaryTask.cancel();
+        SUMMARY_TIMER.purge();
+    }
+
+    /**
+     * Timer task reporting suppressions, without keeping the limiter from being collected
+     */
+    private static final class SummaryTask extends TimerTask {
+        /** Limiter to summarize */
+        private final WeakReference<LogRateLimiter> limiter;
+
+        SummaryTask(LogRateLimiter limiter) {
+            this.limiter = new WeakReference<>(limiter);
+        }
+
+        @Override
+        public void run() {
+            LogRateLimiter target = limiter.get();
+            if (target == null)
+                cancel();
+            else
+                target.summarize();
+        }
+    }
+
+    /**
+     * Token bucket and suppression counter of a single template
+     */
+    private static class Bucket {
+        /** Logger used to report suppressions */
+        private volatile WeakReference<CLogger> logger;
+        /** Tokens available */
+        private double tokens;
+        /** Time of the last refill (in nanoseconds) */
+        private long lastRefill = System.nanoTime();
+        /** Messages suppressed since the last summary */
+        private long suppressed = 0L;
+        /** Whether the bucket was used since the last summary */
+        private boolean used = true;
+
+        Bucket(double burst) {
+            this.tokens = burst;
+        }
+
+        CLogger getLogger() {
+            WeakReference<CLogger> ref = logger;
+            return ref != null ? ref.get() : null;
+        }
+
+        void setLogger(CLogger logger) {
+            if (getLogger() != logger)
+                this.logger = new WeakReference<>(logger);
+        }
+
+        synchronized boolean tryAcquire(double rate, double burst) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            used = true;
+            if (tokens >= 1d) {
+                tokens -= 1d;
+                return true;
+            }
+            suppressed++;
+            return false;
+        }
+
+        synchronized boolean pass() {
+            used = true;
+            return true;
+        }
+
+        synchronized void suppress() {
+            used = true;
+            suppressed++;
+        }
+
+        synchronized long drainSuppressed() {
+            long drained = suppressed;
+            suppressed = 0L;
+            return drained;
+        }
+
+        synchronized boolean idle() {
+            boolean idle = !used;
+            used = false;
+            return idle;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.researchworx.cresco.library.utilities;
+
+import java.util.Arrays;
+
+/**
+ * Cresco mergeable quantile sketch
+ *
+ * Counts values in logarithmically sized buckets, so every quantile is estimated within a fixed relative error
+ * of the true value whatever the distribution, and two sketches built with the same accuracy merge by adding
+ * their bucket counts. This lets rollups from several stripes, windows or agents be combined without losing
+ * precision. Values too close to zero to be bucketed are counted as zero; when the buckets in use exceed the
+ * limit, the ones nearest zero are collapsed. Instances are not thread-safe.
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public class QuantileSketch {
+    /** Default relative accuracy */
+    public static final double DEFAULT_ACCURACY = 0.01;
+    /** Default limit of buckets in use per sign */
+    public static final int DEFAULT_MAX_BUCKETS = 2048;
+    /** Smallest magnitude counted in a bucket rather than as zero */
+    private static final double MIN_INDEXABLE = 1e-9;
+
+    /** Relative accuracy of quantile estimates */
+    private final double accuracy;
+    /** Limit of buckets in use per sign */
+    private final int maxBuckets;
+    /** Ratio between the bounds of a bucket */
+    private final double gamma;
+    /** Natural logarithm of {@link #gamma} */
+    private final double logGamma;
+    /** Buckets of positive values */
+    private final Store positive = new Store();
+    /** Buckets of negative values, by magnitude */
+    private final Store negative = new Store();
+    /** Number of values counted as zero */
+    private long zeroCount;
+
+    /**
+     * Constructor using the default accuracy
+     */
+    public QuantileSketch() {
+        this(DEFAULT_ACCURACY, DEFAULT_MAX_BUCKETS);
+    }
+
+    /**
+     * Constructor
+     * @param accuracy      Relative accuracy of quantile estimates, e.g. 0.01 for 1%
+     * @param maxBuckets    Limit of buckets in use per sign
+     */
+    public QuantileSketch(double accuracy, int maxBuckets) {
+        if (accuracy <= 0d || accuracy >= 1d)
+            throw new IllegalArgumentException("accuracy must be between 0 and 1");
+        if (maxBuckets <= 0)
+            throw new IllegalArgumentException("maxBuckets must be positive");
+        this.accuracy = accuracy;
+        this.maxBuckets = maxBuckets;
+        this.gamma = (1d + accuracy) / (1d - accuracy);
+        this.logGamma = Math.log(gamma);
+    }
+
+    /**
+     * Adds a value
+     * @param value         Value to add, NaN is ignored
+     */
+    public void add(double value) {
+        if (value > MIN_INDEXABLE)
+            positive.add(index(value), 1);
+        else if (value < -MIN_INDEXABLE)
+            negative.add(index(-value), 1);
+        else if (!Double.isNaN(value))
+            zeroCount++;
+    }
+
+    /**
+     * Adds the values of another sketch
+     * @param other         Sketch built with the same accuracy
+     */
+    public void merge(QuantileSketch other) {
+        if (other.accuracy != accuracy)
+            throw new IllegalArgumentException("Cannot merge sketches of different accuracy");
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+        zeroCount += other.zeroCount;
+    }
+
+    /**
+     * Estimates a quantile
+     * @param quantile      Quantile to estimate, between 0 and 1
+     * @return              The estimate, NaN if the sketch is empty
+     */
+    public double quantile(double quantile) {
+        long count = getCount();
+        if (count == 0)
+            return Double.NaN;
+        long rank = (long) (Math.max(0d, Math.min(1d, quantile)) * (count - 1));
+        long seen = 0;
+        for (int i = negative.max; i >= negative.min; i--) {
+            seen += negative.counts[i - negative.offset];
+            if (seen > rank)
+                return -value(i);
+        }
+        seen += zeroCount;
+        if (seen > rank)
+            return 0d;
+        for (int i = positive.min; i <= positive.max; i++) {
+            seen += positive.counts[i - positive.offset];
+            if (seen > rank)
+                return value(i);
+        }
+        return value(positive.max);
+    }
+
+    /**
+     * Removes every value, keeping the allocated buckets for reuse
+     */
+    public void clear() {
+        positive.clear();
+        negative.clear();
+        zeroCount = 0;
+    }
+
+    /**
+     * Count getter
+     * @return          Current number of values added
+     */
+    public long getCount() {
+        return positive.total + negative.total + zeroCount;
+    }
+
+    /**
+     * Accuracy getter
+     * @return          Relative accuracy of quantile estimates
+     */
+    public double getAccuracy() {
+        return accuracy;
+    }
+
+    /**
+     * Serializes the sketch as accuracy|zeros|negative buckets|positive buckets, buckets being written as the
+     * index of the first one followed by the counts, e.g. 0.01|0|0:|230:4,0,1
+     * @return              The encoded sketch
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(accuracy).append('|').append(zeroCount).append('|');
+        negative.encode(sb);
+        sb.append('|');
+        positive.encode(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Deserializes a sketch written by {@link #encode()}
+     * @param encoded       The encoded sketch
+     * @return              The sketch, null if the encoding is invalid
+     */
+    public static QuantileSketch decode(String encoded) {
+        try {
+            String[] parts = encoded.split("\\|", -1);
+            if (parts.length != 4)
+                return null;
+            QuantileSketch sketch = new QuantileSketch(Double.parseDouble(parts[0]), DEFAULT_MAX_BUCKETS);
+            sketch.zeroCount = Long.parseLong(parts[1]);
+            sketch.negative.decode(parts[2]);
+            sketch.positive.decode(parts[3]);
+            return sketch;
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the bucket of a positive value
+     * @param value         Value above {@link #MIN_INDEXABLE}
+     * @return              Bucket index
+     */
+    private int index(double value) {
+        return (int) Math.ceil(Math.log(value) / logGamma);
+    }
+
+    /**
+     * Returns the value reported for a bucket, within the accuracy of every value it holds
+     * @param index         Bucket index
+     * @return              Representative value
+     */
+    private double value(int index) {
+        return 2d * Math.pow(gamma, index) / (gamma + 1d);
+    }
+
+    /**
+     * Dense bucket counts over the range of indexes in use
+     */
+    private final class Store {
+        /** Counts, the first one belonging to bucket {@link #offset} */
+        private int[] counts = new int[0];
+        /** Index of the first count */
+        private int offset;
+        /** Lowest index in use */
+        private int min = Integer.MAX_VALUE;
+        /** Highest index in use */
+        private int max = Integer.MIN_VALUE;
+        /** Number of values counted */
+        private long total;
+
+        /**
+         * Adds to a bucket
+         * @param index         Bucket index
+         * @param count         Number of values to add
+         */
+        void add(int index, int count) {
+            if (min > max) {
+                if (counts.length == 0)
+                    counts = new int[64];
+                offset = index - counts.length / 2;
+                min = index;
+                max = index;
+            } else if (index < min || index > max) {
+                int low = Math.min(min, index);
+                int high = Math.max(max, index);
+                if (high - low >= maxBuckets) {
+                    // Fold the buckets nearest zero into the lowest one kept
+                    int keep = high - maxBuckets + 1;
+                    if (index < keep)
+                        index = keep;
+                    collapse(keep);
+                    low = Math.min(min, index);
+                }
+                ensure(low, high);
+                min = low;
+                max = high;
+            }
+            counts[index - offset] += count;
+            total += count;
+        }
+
+        /**
+         * Moves the counts of every bucket below an index into that bucket
+         * @param keep          Lowest index kept
+         */
+        private void collapse(int keep) {
+            if (min >= keep)
+                return;
+            int folded = 0;
+            for (int i = min; i <= Math.min(max, keep - 1); i++) {
+                folded += counts[i - offset];
+                counts[i - offset] = 0;
+            }
+            ensure(keep, Math.max(max, keep));
+            counts[keep - offset] += folded;
+            min = keep;
+            max = Math.max(max, keep);
+        }
+
+        /**
+         * Grows or shifts the counts so a range of indexes fits
+         * @param low           Lowest index to fit
+         * @param high          Highest index to fit
+         */
+        private void ensure(int low, int high) {
+            if (low >= offset && high < offset + counts.length)
+                return;
+            int length = counts.length;
+            while (high - low + 1 > length)
+                length *= 2;
+            int[] grown = new int[length];
+            int newOffset = low - (length - (high - low + 1)) / 2;
+            if (min <= max) {
+                int from = Math.max(min, newOffset);
+                int to = Math.min(max, newOffset + length - 1);
+                if (from <= to)
+                    System.arraycopy(counts, from - offset, grown, from - newOffset, to - from + 1);
+            }
+            counts = grown;
+            offset = newOffset;
+        }
+
+        /**
+         * Adds the counts of another store
+         * @param other         Store to add
+         */
+        void merge(Store other) {
+            for (int i = other.min; i <= other.max; i++) {
+                int count = other.counts[i - other.offset];
+                if (count != 0)
+                    add(i, count);
+            }
+        }
+
+        /**
+         * Removes every count, keeping the array
+         */
+        void clear() {
+            if (min <= max)
+                Arrays.fill(counts, min - offset, max - offset + 1, 0);
+            min = Integer.MAX_VALUE;
+            max = Integer.MIN_VALUE;
+            total = 0;
+        }
+
+        /**
+         * Writes the buckets in use as first index followed by the counts
+         * @param sb            Destination buffer
+         */
+        void encode(StringBuilder sb) {
+            if (min > max) {
+                sb.append("0:");
+                return;
+            }
+            sb.append(min).append(':');
+            for (int i = min; i <= max; i++) {
+                if (i > min)
+                    sb.append(',');
+                sb.append(counts[i - offset]);
+            }
+        }
+
+        /**
+         * Reads buckets written by {@link #encode(StringBuilder)}
+         * @param encoded       The encoded buckets
+         */
+        void decode(String encoded) {
+            int colon = encoded.indexOf(':');
+            if (colon < 0)
+                throw new IllegalArgumentException("Missing index of the first bucket");
+            int first = Integer.parseInt(encoded.substring(0, colon));
+            String values = encoded.substring(colon + 1);
+            if (values.isEmpty())
+                return;
+            String[] parts = values.split(",");
+            for (int i = 0; i < parts.length; i++) {
+                int count = Integer.parseInt(parts[i]);
+                if (count < 0)
+                    throw new IllegalArgumentException("Negative bucket count");
+                if (count > 0)
+                    add(first + i, count);
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.researchworx.cresco.library.core;
+
+import com.researchworx.cresco.library.messaging.MsgEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HeartbeatMonitorTest {
+    private static final long TICK = 100L;
+    private static final long INTERVAL = 1000L;
+    private static final long RETENTION = 5000L;
+    private static final String PLUGIN = HeartbeatMonitor.idOf("region", "agent", "plugin/0");
+
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    private HeartbeatMonitor monitor;
+    private long clock;
+
+    @Before
+    public void setUp() {
+        events.clear();
+        monitor = new HeartbeatMonitor(new HeartbeatMonitor.Listener() {
+            @Override
+            public void onSuspect(String id, double phi) {
+                events.add("suspect " + id);
+            }
+
+            @Override
+            public void onDead(String id, double phi) {
+                events.add("dead " + id);
+            }
+
+            @Override
+            public void onRecovered(String id) {
+                events.add("recovered " + id);
+            }
+        }, 2, 16, HeartbeatMonitor.DEFAULT_SUSPECT_THRESHOLD, HeartbeatMonitor.DEFAULT_DEAD_THRESHOLD, TICK,
+                INTERVAL, RETENTION);
+        clock = System.currentTimeMillis();
+    }
+
+    @Test
+    public void testSteadyHeartbeatsStayAlive() {
+        beat(20, PLUGIN);
+        advance(clock + INTERVAL / 2);
+        assertTrue(events.isEmpty());
+        assertEquals(1, monitor.size());
+    }
+
+    @Test
+    public void testMissedHeartbeatsTurnSuspectThenDead() {
+        beat(10, PLUGIN);
+        long last = clock;
+        advance(last + INTERVAL + TICK);
+        assertTrue(events.isEmpty());
+        advance(last + 3 * INTERVAL);
+        assertEquals(Arrays.asList("suspect " + PLUGIN, "dead " + PLUGIN), events);
+    }
+
+    @Test
+    public void testHeartbeatAfterSuspicionRecovers() {
+        beat(10, PLUGIN);
+        long last = clock;
+        while (events.isEmpty())
+            advance(clock + TICK);
+        assertEquals("suspect " + PLUGIN, events.get(0));
+        assertTrue(monitor.heartbeat(PLUGIN, clock));
+        assertEquals("recovered " + PLUGIN, events.get(1));
+        advance(last + 2 * INTERVAL);
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    public void testDeadSlotFreedAfterRetention() {
+        String other = HeartbeatMonitor.idOf("region", "agent", "plugin/1");
+        String late = HeartbeatMonitor.idOf("region", "agent", "plugin/2");
+        beat(10, PLUGIN, other);
+        assertFalse(monitor.heartbeat(late, clock));
+        long last = clock;
+        keepAlive(other, last + 3 * INTERVAL);
+        assertEquals(Collections.singletonList("dead " + PLUGIN), events.subList(1, events.size()));
+        assertEquals(2, monitor.size());
+        keepAlive(other, last + 2 * INTERVAL + RETENTION);
+        assertEquals(1, monitor.size());
+        assertEquals(-1d, monitor.phi(PLUGIN), 0d);
+        assertTrue(monitor.heartbeat(late, clock));
+        assertFalse(monitor.heartbeat(PLUGIN, clock));
+        assertFalse(events.contains("recovered " + PLUGIN));
+    }
+
+    @Test
+    public void testRemoveFreesSlot() {
+        beat(3, PLUGIN);
+        assertTrue(monitor.remove(PLUGIN));
+        assertFalse(monitor.remove(PLUGIN));
+        assertEquals(0, monitor.size());
+        advance(clock + 5 * INTERVAL);
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void testStallGivesGracePeriod() {
+        beat(10, PLUGIN);
+        // The monitor did not run for a while, e.g. during a GC pause
+        clock += 3 * INTERVAL;
+        monitor.tick(clock);
+        assertTrue(events.isEmpty());
+        advance(clock + 3 * INTERVAL);
+        assertTrue(events.contains("dead " + PLUGIN));
+    }
+
+    @Test
+    public void testWatchDogMessage() {
+        MsgEvent tick = new MsgEvent(MsgEvent.Type.WATCHDOG, "region", "agent", "plugin/0", "WatchDog timer");
+        tick.setParam("src_region", "region");
+        tick.setParam("src_agent", "agent");
+        tick.setParam("src_plugin", "plugin/0");
+        assertTrue(monitor.heartbeat(tick));
+        assertFalse(monitor.heartbeat(new MsgEvent(MsgEvent.Type.INFO, "region", "agent", "plugin/0", "info")));
+        assertEquals(1, monitor.size());
+    }
+
+    private void beat(int count, String... ids) {
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                advance(clock + INTERVAL);
+            for (String id : ids)
+                assertTrue(monitor.heartbeat(id, clock));
+        }
+    }
+
+    private void keepAlive(String id, long to) {
+        while (clock + INTERVAL <= to) {
+            advance(clock + INTERVAL);
+            assertTrue(monitor.heartbeat(id, clock));
+        }
+    }
+
+    private void advance(long to) {
+        while (clock + TICK <= to) {
+            clock += TICK;
+            monitor.tick(clock);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.researchworx.cresco.library.messaging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FlowControllerTest {
+
+    @Test
+    public void testRejectWhenOutOfPermits() {
+        BlockingQueue<MsgEvent> queue = new LinkedBlockingQueue<>();
+        FlowController flow = new FlowController(queue, 10, 2);
+        MsgEvent first = message(MsgEvent.Type.INFO, "a", 0);
+        MsgEvent second = message(MsgEvent.Type.INFO, "a", 1);
+        assertTrue(flow.trySend(first));
+        assertTrue(flow.trySend(second));
+        assertFalse(flow.trySend(message(MsgEvent.Type.INFO, "a", 2)));
+        assertEquals(1, flow.getShed(MsgEvent.Type.INFO));
+        assertEquals(Arrays.asList(first, second), drain(flow));
+        assertEquals(0, flow.getInFlight(MsgEvent.Type.INFO));
+        assertTrue(flow.trySend(message(MsgEvent.Type.INFO, "a", 3)));
+    }
+
+    @Test
+    public void testRejectWhenChannelFull() {
+        BlockingQueue<MsgEvent> queue = new ArrayBlockingQueue<>(2);
+        FlowController flow = new FlowController(queue, 10, 10);
+        assertTrue(flow.trySend(message(MsgEvent.Type.INFO, "a", 0)));
+        assertTrue(flow.trySend(message(MsgEvent.Type.INFO, "a", 1)));
+        assertFalse(flow.trySend(message(MsgEvent.Type.INFO, "a", 2)));
+        assertEquals(2, flow.getInFlight(MsgEvent.Type.INFO));
+        assertEquals(2, drain(flow).size());
+        assertEquals(0, flow.getInFlight(MsgEvent.Type.INFO));
+    }
+
+    @Test
+    public void testDropOldestRemovesVictimFromChannel() {
+        BlockingQueue<MsgEvent> queue = new LinkedBlockingQueue<>();
+        FlowController flow = new FlowController(queue, 10, 10);
+        flow.setTypeLimit(MsgEvent.Type.KPI, 2, FlowController.Policy.DROP_OLDEST);
+        MsgEvent oldest = message(MsgEvent.Type.KPI, "a", 0);
+        MsgEvent kept = message(MsgEvent.Type.KPI, "a", 1);
+        MsgEvent newest = message(MsgEvent.Type.KPI, "a", 2);
+        assertTrue(flow.trySend(oldest));
+        assertTrue(flow.trySend(kept));
+        assertTrue(flow.trySend(newest));
+        assertEquals(2, queue.size());
+        assertEquals(1, flow.getShed(MsgEvent.Type.KPI));
+        assertEquals(2, flow.getInFlight(MsgEvent.Type.KPI));
+        assertEquals(Arrays.asList(kept, newest), drain(flow));
+        assertEquals(0, flow.getInFlight(MsgEvent.Type.KPI));
+    }
+
+    @Test
+    public void testDropOldestFallsBackToOtherProducers() {
+        BlockingQueue<MsgEvent> queue = new LinkedBlockingQueue<>();
+        FlowController flow = new FlowController(queue, 10, 10);
+        flow.setTypeLimit(MsgEvent.Type.KPI, 2, FlowController.Policy.DROP_OLDEST);
+        MsgEvent oldest = message(MsgEvent.Type.KPI, "a", 0);
+        MsgEvent kept = message(MsgEvent.Type.KPI, "a", 1);
+        MsgEvent other = message(MsgEvent.Type.KPI, "b", 0);
+        assertTrue(flow.trySend(oldest));
+        assertTrue(flow.trySend(kept));
+        assertTrue(flow.trySend(other));
+        assertEquals(Arrays.asList(kept, other), drain(flow));
+        assertEquals(0, flow.getInFlight(MsgEvent.Type.KPI));
+    }
+
+    @Test
+    public void testDropOldestWhenChannelFull() {
+        BlockingQueue<MsgEvent> queue = new ArrayBlockingQueue<>(2);
+        FlowController flow = new FlowController(queue, 10, 10);
+        flow.setTypeLimit(MsgEvent.Type.KPI, 10, FlowController.Policy.DROP_OLDEST);
+        MsgEvent oldest = message(MsgEvent.Type.KPI, "a", 0);
+        MsgEvent kept = message(MsgEvent.Type.KPI, "a", 1);
+        MsgEvent newest = message(MsgEvent.Type.KPI, "a", 2);
+        assertTrue(flow.trySend(oldest));
+        assertTrue(flow.trySend(kept));
+        assertTrue(flow.trySend(newest));
+        assertEquals(Arrays.asList(kept, newest), drain(flow));
+        assertEquals(0, flow.getInFlight(MsgEvent.Type.KPI));
+    }
+
+    @Test
+    public void testCoalesceReplacesSameProducerOnly() {
+        BlockingQueue<MsgEvent> queue = new LinkedBlockingQueue<>();
+        FlowController flow = new FlowController(queue, 10, 1);
+        MsgEvent first = message(MsgEvent.Type.WATCHDOG, "a", 0);
+        MsgEvent second = message(MsgEvent.Type.WATCHDOG, "a", 1);
+        assertTrue(flow.trySend(first));
+        assertTrue(flow.trySend(second));
+        assertFalse(flow.trySend(message(MsgEvent.Type.WATCHDOG, "b", 0)));
+        assertEquals(2, flow.getShed(MsgEvent.Type.WATCHDOG));
+        MsgEvent taken = flow.poll();
+        assertSame(second, taken);
+        assertNull(flow.poll());
+        assertEquals(0, flow.getInFlight(MsgEvent.Type.WATCHDOG));
+    }
+
+    @Test
+    public void testConcurrentSheddingKeepsCounts() throws Exception {
+        final int producers = 4;
+        final int perProducer = 20000;
+        BlockingQueue<MsgEvent> queue = new ArrayBlockingQueue<>(64);
+        final FlowController flow = new FlowController(queue, 32, 48);
+        flow.setTypeLimit(MsgEvent.Type.KPI, 48, FlowController.Policy.DROP_OLDEST);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger delivered = new AtomicInteger();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!done.get() || flow.getInFlight(MsgEvent.Type.KPI) > 0) {
+                        if (flow.poll(10, TimeUnit.MILLISECONDS) != null)
+                            delivered.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    // Test over
+                }
+            }
+        });
+        consumer.start();
+        List<Thread> senders = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final String plugin = "p" + p;
+            Thread sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++)
+                        flow.trySend(message(MsgEvent.Type.KPI, plugin, i));
+                }
+            });
+            senders.add(sender);
+            sender.start();
+        }
+        for (Thread sender : senders)
+            sender.join();
+        done.set(true);
+        consumer.join(10000);
+        assertFalse(consumer.isAlive());
+        assertEquals(0, flow.getInFlight(MsgEvent.Type.KPI));
+        assertEquals(0, queue.size());
+        assertEquals(producers * perProducer, delivered.get() + flow.getShed(MsgEvent.Type.KPI));
+    }
+
+    private static MsgEvent message(MsgEvent.Type type, String plugin, int seq) {
+        MsgEvent msg = new MsgEvent(type, "region", "agent", plugin, "test");
+        msg.setParam("src_agent", "agent");
+        msg.setParam("src_plugin", plugin);
+        msg.setParam("seq", String.valueOf(seq));
+        return msg;
+    }
+
+    private static List<MsgEvent> drain(FlowController flow) {
+        List<MsgEvent> taken = new ArrayList<>();
+        MsgEvent msg;
+        while ((msg = flow.poll()) != null)
+            taken.add(msg);
+        return taken;
+    }
+}
@@ -0,0 +1,157 @@
+package com.researchworx.cresco.library.messaging;
+
+import com.researchworx.cresco.library.utilities.CLogger;
+import org.apache.activemq.junit.EmbeddedActiveMQBroker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import javax.jms.Connection;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class JmsTransportTest {
+    private static final String QUEUE = "cresco.test";
+    private static final int MESSAGES = 500;
+    private static final String POISON = "-1";
+
+    @Rule
+    public EmbeddedActiveMQBroker broker = new EmbeddedActiveMQBroker();
+
+    private BlockingQueue<MsgEvent> msgOutQueue;
+    private JmsTransport transport;
+    private final AtomicInteger failures = new AtomicInteger();
+    private CountDownLatch sent;
+
+    @Before
+    public void setUp() {
+        msgOutQueue = new LinkedBlockingQueue<>();
+        CLogger logger = new CLogger(new LinkedBlockingQueue<MsgEvent>(), "region", "agent", "plugin");
+        transport = new JmsTransport(msgOutQueue, broker.createConnectionFactory(),
+                new JmsTransport.DestinationResolver() {
+                    @Override
+                    public String resolve(MsgEvent msg) {
+                        if (POISON.equals(msg.getParam("seq")))
+                            throw new IllegalArgumentException("unroutable message");
+                        return QUEUE;
+                    }
+                }, logger);
+        sent = new CountDownLatch(MESSAGES);
+        transport.setCallback(new JmsTransport.SendCallback() {
+            @Override
+            public void onSuccess(MsgEvent msg) {
+                sent.countDown();
+            }
+
+            @Override
+            public void onFailure(MsgEvent msg, Exception e) {
+                failures.incrementAndGet();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        transport.stop();
+    }
+
+    @Test
+    public void testBatchedSend() throws Exception {
+        transport.setBatchSize(50);
+        transport.setSenderCount(2);
+        transport.start();
+        for (int i = 0; i < MESSAGES; i++)
+            msgOutQueue.add(message(i));
+        assertTrue(sent.await(30, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        assertEquals(MESSAGES, receive());
+    }
+
+    @Test
+    public void testAsyncSend() throws Exception {
+        transport.setBatchSize(1);
+        transport.start();
+        for (int i = 0; i < MESSAGES; i++)
+            msgOutQueue.add(message(i));
+        assertTrue(sent.await(30, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        assertEquals(MESSAGES, receive());
+    }
+
+    @Test
+    public void testFlowControlPermitsReturned() throws Exception {
+        FlowController flow = new FlowController(msgOutQueue, MESSAGES, MESSAGES);
+        transport.setFlowController(flow);
+        transport.start();
+        for (int i = 0; i < MESSAGES; i++)
+            assertTrue(flow.trySend(message(i)));
+        assertTrue(sent.await(30, TimeUnit.SECONDS));
+        assertEquals(0, flow.getInFlight(MsgEvent.Type.INFO));
+        assertEquals(MESSAGES, receive());
+    }
+
+    @Test
+    public void testResolverFailureKeepsSenderAlive() throws Exception {
+        transport.setBatchSize(1);
+        transport.start();
+        msgOutQueue.add(message(Integer.parseInt(POISON)));
+        for (int i = 0; i < MESSAGES; i++)
+            msgOutQueue.add(message(i));
+        assertTrue(sent.await(30, TimeUnit.SECONDS));
+        assertEquals(1, failures.get());
+        assertEquals(MESSAGES, receive());
+    }
+
+    @Test
+    public void testEncodingRoundTrip() throws Exception {
+        transport.start();
+        msgOutQueue.add(message(42));
+        Connection connection = broker.createConnectionFactory().createConnection();
+        try {
+            connection.start();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageConsumer consumer = session.createConsumer(session.createQueue(QUEUE));
+            TextMessage received = (TextMessage) consumer.receive(10000);
+            assertNotNull(received);
+            MsgEvent decoded = MsgEventCodecs.json().decode(received.getText());
+            assertEquals("42", decoded.getParam("seq"));
+            assertEquals(MsgEvent.Type.INFO, decoded.getMsgType());
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static MsgEvent message(int seq) {
+        MsgEvent msg = new MsgEvent(MsgEvent.Type.INFO, "region", "agent", "plugin", "test");
+        msg.setParam("src_agent", "agent");
+        msg.setParam("src_plugin", "plugin");
+        msg.setParam("seq", String.valueOf(seq));
+        return msg;
+    }
+
+    private int receive() throws Exception {
+        Connection connection = broker.createConnectionFactory().createConnection();
+        try {
+            connection.start();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageConsumer consumer = session.createConsumer(session.createQueue(QUEUE));
+            int count = 0;
+            while (consumer.receive(2000) != null)
+                count++;
+            return count;
+        } finally {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.researchworx.cresco.library.messaging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MsgEventDeltaCodecTest {
+    @Test
+    public void testRoundTrip() {
+        MsgEventDeltaCodec.Encoder encoder = new MsgEventDeltaCodec.Encoder();
+        MsgEventDeltaCodec.Decoder decoder = new MsgEventDeltaCodec.Decoder();
+        for (MsgEvent msg : stream(50)) {
+            MsgEvent frame = encoder.encode(msg);
+            assertEquals(msg.getParam("src_agent"), frame.getParam("src_agent"));
+            assertEquals(msg.getParam("dst_region"), frame.getParam("dst_region"));
+            MsgEvent decoded = decoder.decode(frame);
+            assertNotNull(decoded);
+            assertEquals(msg.getMsgType(), decoded.getMsgType());
+            assertEquals(msg.getMsgRegion(), decoded.getMsgRegion());
+            assertEquals(msg.getMsgAgent(), decoded.getMsgAgent());
+            assertEquals(msg.getMsgPlugin(), decoded.getMsgPlugin());
+            assertEquals(msg.getParams(), decoded.getParams());
+        }
+        assertEquals(0, decoder.getDropped());
+    }
+
+    @Test
+    public void testKeyframeInterval() {
+        MsgEventDeltaCodec.Encoder encoder = new MsgEventDeltaCodec.Encoder("stream",
+                Arrays.asList("src_region", "src_agent", "src_plugin"), 4, 4096);
+        List<MsgEvent> messages = stream(9);
+        for (int i = 0; i < messages.size(); i++) {
+            MsgEvent frame = encoder.encode(messages.get(i));
+            assertEquals(i % 4 == 0, "1".equals(frame.getParam(MsgEventDeltaCodec.PARAM_KEYFRAME)));
+        }
+    }
+
+    @Test
+    public void testGapAndResync() {
+        MsgEventDeltaCodec.Encoder encoder = new MsgEventDeltaCodec.Encoder();
+        MsgEventDeltaCodec.Decoder decoder = new MsgEventDeltaCodec.Decoder();
+        List<MsgEvent> messages = stream(6);
+        assertNotNull(decoder.decode(encoder.encode(messages.get(0))));
+        assertNotNull(decoder.decode(encoder.encode(messages.get(1))));
+        // Frame 2 is lost, so frame 3 cannot be applied
+        encoder.encode(messages.get(2));
+        MsgEvent frame = encoder.encode(messages.get(3));
+        assertNull(decoder.decode(frame));
+        assertEquals(1, decoder.getDropped());
+
+        MsgEvent request = decoder.resyncRequest(frame);
+        assertEquals("agent-0", request.getParam("dst_agent"));
+        assertEquals("plugin/0", request.getParam("dst_plugin"));
+        assertEquals("controller", request.getParam("src_agent"));
+        assertEquals(MsgEventDeltaCodec.ACTION_RESYNC, request.getParam("action"));
+
+        // Frames keep being dropped until the sender handles the request
+        assertNull(decoder.decode(encoder.encode(messages.get(4))));
+        assertEquals(2, decoder.getDropped());
+        assertTrue(encoder.handleResync(request));
+        MsgEvent keyframe = encoder.encode(messages.get(5));
+        assertEquals("1", keyframe.getParam(MsgEventDeltaCodec.PARAM_KEYFRAME));
+        MsgEvent decoded = decoder.decode(keyframe);
+        assertNotNull(decoded);
+        assertEquals(messages.get(5).getParams(), decoded.getParams());
+    }
+
+    @Test
+    public void testResyncForOtherStream() {
+        MsgEventDeltaCodec.Encoder encoder = new MsgEventDeltaCodec.Encoder();
+        MsgEventDeltaCodec.Encoder other = new MsgEventDeltaCodec.Encoder();
+        MsgEvent request = new MsgEventDeltaCodec.Decoder().resyncRequest(other.encode(stream(1).get(0)));
+        assertFalse(encoder.handleResync(request));
+    }
+
+    @Test
+    public void testPassThrough() {
+        MsgEvent msg = stream(1).get(0);
+        assertSame(msg, new MsgEventDeltaCodec.Decoder().decode(msg));
+        assertNull(new MsgEventDeltaCodec.Decoder().resyncRequest(msg));
+    }
+
+    private static List<MsgEvent> stream(int count) {
+        List<MsgEvent> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            MsgEvent msg = new MsgEvent(MsgEvent.Type.KPI, "region", "agent-0", "plugin/0", "KPI sample");
+            msg.setSrc("region", "agent-0", "plugin/0");
+            msg.setDst("region", "controller", null);
+            msg.setParam("kpi_name", i % 2 == 0 ? "cpu" : "memory");
+            msg.setParam("value", String.valueOf(i * 7 % 13));
+            msg.setParam("ts", String.valueOf(1000L + i));
+            if (i % 3 == 0)
+                msg.setParam("note", "every third");
+            messages.add(msg);
+        }
+        return messages;
+    }
+}
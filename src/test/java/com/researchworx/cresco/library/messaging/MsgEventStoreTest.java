@@ -0,0 +1,231 @@
+package com.researchworx.cresco.library.messaging;
+
+import com.researchworx.cresco.library.utilities.CLogger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MsgEventStoreTest {
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CLogger logger;
+    private File directory;
+    private MsgEventStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        logger = new CLogger(new LinkedBlockingQueue<MsgEvent>(), "region", "agent", "plugin");
+        directory = folder.newFolder("events");
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null)
+            store.close();
+    }
+
+    @Test
+    public void testAppendAndQuery() throws IOException {
+        store = new MsgEventStore(directory, SEGMENT_SIZE, 16L * SEGMENT_SIZE, 0L, logger);
+        for (int i = 0; i < 100; i++)
+            assertTrue(store.append(message(MsgEvent.Type.LOG, "plugin/0", "Info", i)));
+        List<MsgEvent> all = store.query(new MsgEventStore.Query());
+        assertEquals(100, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            MsgEvent msg = all.get(i);
+            assertEquals(String.valueOf(i), msg.getParam("seq"));
+            assertEquals(MsgEvent.Type.LOG, msg.getMsgType());
+            assertEquals("plugin/0", msg.getParam("src_plugin"));
+            assertEquals("message " + i, msg.getMsgBody());
+        }
+        assertTrue(store.getSegmentCount() > 1);
+        assertEquals(10, store.query(new MsgEventStore.Query().limit(10)).size());
+    }
+
+    @Test
+    public void testPostingsQueries() throws IOException {
+        store = new MsgEventStore(directory, SEGMENT_SIZE, 64L * SEGMENT_SIZE, 0L, logger);
+        for (int i = 0; i < 300; i++) {
+            MsgEvent.Type type = i % 3 == 0 ? MsgEvent.Type.KPI : MsgEvent.Type.LOG;
+            assertTrue(store.append(message(type, "plugin/" + (i % 5), i % 10 == 0 ? "Error" : "Info", i)));
+        }
+        assertEquals(100, store.query(new MsgEventStore.Query().type(MsgEvent.Type.KPI)).size());
+        assertEquals(200, store.query(new MsgEventStore.Query().type(MsgEvent.Type.LOG)).size());
+        assertEquals(0, store.query(new MsgEventStore.Query().type(MsgEvent.Type.EXEC)).size());
+        assertEquals(30, store.query(new MsgEventStore.Query().level("Error")).size());
+        assertEquals(0, store.query(new MsgEventStore.Query().level("Trace")).size());
+        List<MsgEvent> plugin = store.query(new MsgEventStore.Query().plugin("plugin/2"));
+        assertEquals(60, plugin.size());
+        for (MsgEvent msg : plugin)
+            assertEquals("plugin/2", msg.getParam("src_plugin"));
+        // Every type, level and plugin restriction applies, not only the shortest postings list
+        List<MsgEvent> combined = store.query(new MsgEventStore.Query().type(MsgEvent.Type.KPI).level("Error")
+                .plugin("plugin/0"));
+        assertEquals(10, combined.size());
+        for (MsgEvent msg : combined)
+            assertEquals(0, Integer.parseInt(msg.getParam("seq")) % 30);
+        assertEquals(5, store.query(new MsgEventStore.Query().level("Error").limit(5)).size());
+    }
+
+    @Test
+    public void testTimeRange() throws Exception {
+        store = new MsgEventStore(directory, SEGMENT_SIZE, 16L * SEGMENT_SIZE, 0L, logger);
+        for (int i = 0; i < 10; i++)
+            store.append(message(MsgEvent.Type.LOG, "plugin/0", "Info", i));
+        Thread.sleep(20);
+        long middle = System.currentTimeMillis();
+        Thread.sleep(20);
+        for (int i = 10; i < 20; i++)
+            store.append(message(MsgEvent.Type.LOG, "plugin/0", "Info", i));
+        assertEquals(10, store.query(new MsgEventStore.Query().from(middle)).size());
+        assertEquals(10, store.query(new MsgEventStore.Query().to(middle)).size());
+        assertEquals(10, store.query(new MsgEventStore.Query().to(middle).level("Info")).size());
+        final List<Long> times = new ArrayList<>();
+        store.scan(new MsgEventStore.Query().from(middle), new MsgEventStore.Visitor() {
+            @Override
+            public boolean visit(long timestamp, MsgEvent msg) {
+                times.add(timestamp);
+                return times.size() < 3;
+            }
+        });
+        assertEquals(3, times.size());
+        for (long time : times)
+            assertTrue(time >= middle);
+    }
+
+    @Test
+    public void testRecordFormat() throws IOException {
+        store = new MsgEventStore(directory, SEGMENT_SIZE, 16L * SEGMENT_SIZE, 0L, logger);
+        long before = System.currentTimeMillis();
+        store.append(message(MsgEvent.Type.KPI, "plugin/7", "Warn", 1));
+        store.close();
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        assertEquals(String.format("%020d.seg", 0), files[0].getName());
+        assertEquals(SEGMENT_SIZE, files[0].length());
+        try (RandomAccessFile raf = new RandomAccessFile(files[0], "r")) {
+            int length = raf.readInt();
+            long time = raf.readLong();
+            assertTrue(time >= before && time <= System.currentTimeMillis());
+            assertEquals(MsgEvent.Type.KPI.ordinal(), raf.readByte());
+            int levelLength = raf.readByte();
+            int pluginLength = raf.readShort();
+            byte[] level = new byte[levelLength];
+            raf.readFully(level);
+            assertEquals("Warn", new String(level, StandardCharsets.UTF_8));
+            byte[] plugin = new byte[pluginLength];
+            raf.readFully(plugin);
+            assertEquals("plugin/7", new String(plugin, StandardCharsets.UTF_8));
+            byte[] payload = new byte[length - 16 - levelLength - pluginLength];
+            raf.readFully(payload);
+            MsgEvent decoded = MsgEventCodecs.json().decode(new String(payload, StandardCharsets.UTF_8));
+            assertEquals("1", decoded.getParam("seq"));
+            // A zero length marks the end of the segment
+            assertEquals(0, raf.readInt());
+        }
+    }
+
+    @Test
+    public void testRecovery() throws IOException {
+        store = new MsgEventStore(directory, SEGMENT_SIZE, 16L * SEGMENT_SIZE, 0L, logger);
+        for (int i = 0; i < 50; i++)
+            store.append(message(i % 2 == 0 ? MsgEvent.Type.KPI : MsgEvent.Type.LOG, "plugin/0", "Info", i));
+        int segments = store.getSegmentCount();
+        long size = store.getSize();
+        store.close();
+
+        store = new MsgEventStore(directory, SEGMENT_SIZE, 16L * SEGMENT_SIZE, 0L, logger);
+        assertEquals(segments, store.getSegmentCount());
+        assertEquals(size, store.getSize());
+        assertEquals(25, store.query(new MsgEventStore.Query().type(MsgEvent.Type.KPI)).size());
+        store.append(message(MsgEvent.Type.LOG, "plugin/0", "Info", 50));
+        List<MsgEvent> all = store.query(new MsgEventStore.Query());
+        assertEquals(51, all.size());
+        for (int i = 0; i < all.size(); i++)
+            assertEquals(String.valueOf(i), all.get(i).getParam("seq"));
+    }
+
+    @Test
+    public void testRecoveryStopsAtTornRecord() throws IOException {
+        store = new MsgEventStore(directory, SEGMENT_SIZE, 16L * SEGMENT_SIZE, 0L, logger);
+        store.append(message(MsgEvent.Type.LOG, "plugin/0", "Info", 0));
+        long first = store.getSize();
+        store.append(message(MsgEvent.Type.LOG, "plugin/0", "Info", 1));
+        store.close();
+        // A crash before the length of the second record was written leaves it zero
+        try (RandomAccessFile raf = new RandomAccessFile(new File(directory, String.format("%020d.seg", 0)), "rw")) {
+            raf.seek(first);
+            raf.writeInt(0);
+        }
+        store = new MsgEventStore(directory, SEGMENT_SIZE, 16L * SEGMENT_SIZE, 0L, logger);
+        assertEquals(first, store.getSize());
+        List<MsgEvent> all = store.query(new MsgEventStore.Query());
+        assertEquals(1, all.size());
+        assertEquals("0", all.get(0).getParam("seq"));
+    }
+
+    @Test
+    public void testSizeRetention() throws IOException {
+        store = new MsgEventStore(directory, SEGMENT_SIZE, 3L * SEGMENT_SIZE, 0L, logger);
+        for (int i = 0; i < 500; i++)
+            assertTrue(store.append(message(MsgEvent.Type.LOG, "plugin/0", "Info", i)));
+        assertEquals(3, store.getSegmentCount());
+        assertEquals(3, directory.listFiles().length);
+        List<MsgEvent> all = store.query(new MsgEventStore.Query());
+        assertTrue(all.size() < 500);
+        assertEquals("499", all.get(all.size() - 1).getParam("seq"));
+        assertEquals(String.valueOf(500 - all.size()), all.get(0).getParam("seq"));
+    }
+
+    @Test
+    public void testAgeRetention() throws Exception {
+        store = new MsgEventStore(directory, SEGMENT_SIZE, 16L * SEGMENT_SIZE, 200L, logger);
+        for (int i = 0; i < 60; i++)
+            store.append(message(MsgEvent.Type.LOG, "plugin/0", "Info", i));
+        assertTrue(store.getSegmentCount() > 1);
+        Thread.sleep(300);
+        store.append(message(MsgEvent.Type.LOG, "plugin/0", "Info", 60));
+        // The active segment is kept, but queries skip its expired messages
+        assertEquals(1, store.getSegmentCount());
+        assertEquals(1, directory.listFiles().length);
+        List<MsgEvent> all = store.query(new MsgEventStore.Query());
+        assertEquals(1, all.size());
+        assertEquals("60", all.get(0).getParam("seq"));
+    }
+
+    @Test
+    public void testOversizedMessageRefused() throws IOException {
+        store = new MsgEventStore(directory, SEGMENT_SIZE, 16L * SEGMENT_SIZE, 0L, logger);
+        MsgEvent msg = message(MsgEvent.Type.LOG, "plugin/0", "Info", 0);
+        msg.setParam("data", new String(new char[SEGMENT_SIZE]).replace('\0', 'x'));
+        assertFalse(store.append(msg));
+        assertEquals(0, store.query(new MsgEventStore.Query()).size());
+    }
+
+    private static MsgEvent message(MsgEvent.Type type, String plugin, String level, int seq) {
+        MsgEvent msg = new MsgEvent(type, "region", "agent", plugin, "message " + seq);
+        msg.setParam("src_region", "region");
+        msg.setParam("src_agent", "agent");
+        msg.setParam("src_plugin", plugin);
+        msg.setParam("log_level", level);
+        msg.setParam("seq", String.valueOf(seq));
+        return msg;
+    }
+}
@@ -0,0 +1,128 @@
+package com.researchworx.cresco.library.utilities;
+
+import com.researchworx.cresco.library.messaging.MsgEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class KpiAggregatorTest {
+    /** Long enough for the window timer never to fire during a test */
+    private static final long HOUR = 3600000L;
+
+    private BlockingQueue<MsgEvent> msgOutQueue;
+    private CLogger logger;
+    private KpiAggregator aggregator;
+    private long start;
+
+    @Before
+    public void setUp() {
+        msgOutQueue = new LinkedBlockingQueue<>();
+        logger = new CLogger(msgOutQueue, "region", "agent", "plugin");
+        long now = System.currentTimeMillis();
+        start = now - now % HOUR;
+    }
+
+    @After
+    public void tearDown() {
+        if (aggregator != null)
+            aggregator.close();
+    }
+
+    @Test
+    public void testLateFlushClosesEachCoarseWindow() {
+        aggregator = new KpiAggregator(logger, "region", "agent", "plugin", new long[] {HOUR, 2 * HOUR},
+                new double[] {50}, 0.01, 16, false);
+        assertTrue(aggregator.record("latency", 5d));
+        aggregator.flush(false, start + 3 * HOUR + 10);
+        List<MsgEvent> rollups = rollups();
+        assertEquals(2, rollups.size());
+        MsgEvent base = rollup(rollups, HOUR);
+        assertEquals(String.valueOf(start), base.getParam("kpi_start"));
+        assertEquals("1", base.getParam("count"));
+        MsgEvent coarse = rollup(rollups, 2 * HOUR);
+        assertEquals(String.valueOf(start - start % (2 * HOUR)), coarse.getParam("kpi_start"));
+        assertEquals("1", coarse.getParam("count"));
+
+        assertTrue(aggregator.record("latency", 7d));
+        aggregator.flush(false, start + 10 * HOUR + 10);
+        rollups = rollups();
+        assertEquals(String.valueOf(start + 3 * HOUR), rollup(rollups, HOUR).getParam("kpi_start"));
+        assertEquals("7.0", rollup(rollups, 2 * HOUR).getParam("sum"));
+    }
+
+    @Test
+    public void testIdleMetricEvicted() {
+        aggregator = new KpiAggregator(logger, "region", "agent", "plugin", new long[] {HOUR},
+                new double[] {50}, 0.01, 1, false);
+        assertTrue(aggregator.record("first", 1d));
+        assertFalse(aggregator.record("second", 1d));
+        aggregator.flush(false, start + HOUR + 10);
+        assertEquals(1, rollups().size());
+        assertFalse(aggregator.record("second", 1d));
+        aggregator.flush(false, start + 2 * HOUR + 10);
+        assertTrue(rollups().isEmpty());
+        assertTrue(aggregator.record("second", 1d));
+    }
+
+    @Test
+    public void testCloseEmitsOpenWindows() {
+        aggregator = new KpiAggregator(logger, "region", "agent", "plugin", new long[] {HOUR, 4 * HOUR},
+                new double[] {50, 99}, 0.01, 16, false);
+        for (int i = 1; i <= 1000; i++)
+            assertTrue(aggregator.record("latency", i));
+        aggregator.close();
+        assertFalse(aggregator.record("latency", 1d));
+        List<MsgEvent> rollups = rollups();
+        assertEquals(2, rollups.size());
+        for (MsgEvent rollup : rollups) {
+            assertEquals("1000", rollup.getParam("count"));
+            assertEquals("500500.0", rollup.getParam("sum"));
+            assertEquals("1.0", rollup.getParam("min"));
+            assertEquals("1000.0", rollup.getParam("max"));
+            assertEquals(500d, Double.parseDouble(rollup.getParam("p50")), 5d);
+            assertEquals(990d, Double.parseDouble(rollup.getParam("p99")), 9.9d);
+        }
+    }
+
+    @Test
+    public void testRollupCarriesMergeableSketch() {
+        aggregator = new KpiAggregator(logger, "region", "agent", "plugin", new long[] {HOUR},
+                new double[] {50}, 0.01, 16, true);
+        for (int i = 1; i <= 100; i++)
+            aggregator.record("latency", i);
+        aggregator.close();
+        List<MsgEvent> rollups = rollups();
+        assertEquals(1, rollups.size());
+        QuantileSketch sketch = QuantileSketch.decode(rollups.get(0).getParam("kpi_sketch"));
+        assertNotNull(sketch);
+        assertEquals(100, sketch.getCount());
+    }
+
+    private List<MsgEvent> rollups() {
+        List<MsgEvent> rollups = new ArrayList<>();
+        MsgEvent msg;
+        while ((msg = msgOutQueue.poll()) != null) {
+            if (msg.getMsgType() == MsgEvent.Type.KPI)
+                rollups.add(msg);
+        }
+        return rollups;
+    }
+
+    private static MsgEvent rollup(List<MsgEvent> rollups, long resolution) {
+        for (MsgEvent rollup : rollups) {
+            if (String.valueOf(resolution).equals(rollup.getParam("kpi_window")))
+                return rollup;
+        }
+        throw new AssertionError("No rollup for window " + resolution);
+    }
+}
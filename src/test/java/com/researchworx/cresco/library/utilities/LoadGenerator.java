@@ -0,0 +1,510 @@
+package com.researchworx.cresco.library.utilities;
+
+import com.researchworx.cresco.library.core.Config;
+import com.researchworx.cresco.library.core.WatchDog;
+import com.researchworx.cresco.library.messaging.JmsTransport;
+import com.researchworx.cresco.library.messaging.MsgEvent;
+import com.researchworx.cresco.library.messaging.MsgEventCodecs;
+import com.researchworx.cresco.library.messaging.MsgEventDeduplicator;
+import com.researchworx.cresco.library.messaging.RPC;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.commons.configuration.HierarchicalConfiguration;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Cresco load generator and soak-test harness
+ *
+ * Simulates a number of agents, each hosting a number of plugins with their own {@link CLogger}, {@link WatchDog}
+ * and {@link RPC}, all sharing one outbound channel. A consumer drains the channel and answers RPC calls, either
+ * straight from the channel or, with {@code transport=jms}, from an embedded ActiveMQ broker fed by a
+ * {@link JmsTransport}. Throughput per message type, channel latency and RPC round-trip percentiles, GC time
+ * and heap use are reported at a fixed interval.
+ * <p>Run with {@code key=value} arguments, e.g. {@code agents=10 plugins=20 log_rate=50 duration=600}.
+ * Recognized keys: agents, plugins, log_rate, kpi_rate, rpc_rate (per plugin per second), watchdogtimer
+ * (milliseconds), queue_capacity, driver_threads, rpc_threads, duration and report_interval (seconds),
+ * transport (channel or jms), jms_connections, jms_senders and jms_batch_size.</p>
+ * @author V.K. Cody Bumgardner
+ * @author Caylin Hickey
+ * @since 0.4.2
+ */
+public class LoadGenerator {
+    /** Parameter stamped with the enqueue time (in nanoseconds) */
+    static final String PARAM_ENQUEUED = "loadgen_enqueued";
+    /** Queue the JMS transport sends to */
+    private static final String JMS_QUEUE = "loadgen";
+
+    /** Harness settings */
+    private final Config config;
+    /** Output of the periodic reports */
+    private final PrintStream out;
+    /** Shared outbound channel */
+    private final StampingQueue msgOutQueue;
+    /** RPC helpers by callId parameter name */
+    private final Map<String, RPC> rpcs = new ConcurrentHashMap<>();
+    /** Watchdogs of all simulated plugins */
+    private final List<WatchDog> watchDogs = new ArrayList<>();
+    /** Messages consumed by message type ordinal */
+    private final AtomicLongArray consumed = new AtomicLongArray(MsgEvent.Type.values().length);
+    /** Time spent in the outbound channel */
+    private final Histogram channelLatency = new Histogram();
+    /** RPC round-trip time */
+    private final Histogram rpcLatency = new Histogram();
+    /** RPC calls that returned nothing */
+    private final AtomicLong rpcFailures = new AtomicLong();
+    /** Whether the run is in progress */
+    private volatile boolean running = false;
+
+    /**
+     * Constructor
+     * @param config        Harness settings
+     * @param out           Output of the periodic reports
+     */
+    public LoadGenerator(Config config, PrintStream out) {
+        this.config = config;
+        this.out = out;
+        this.msgOutQueue = new StampingQueue(config.getIntegerParam("queue_capacity", Integer.MAX_VALUE));
+    }
+
+    /**
+     * Runs the harness with {@code key=value} settings
+     * @param args          Settings
+     * @throws InterruptedException If interrupted during the run
+     */
+    public static void main(String[] args) throws InterruptedException {
+        HierarchicalConfiguration settings = new HierarchicalConfiguration();
+        settings.addProperty("loadgen.agents", "1");
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split > 0)
+                settings.setProperty("loadgen." + arg.substring(0, split), arg.substring(split + 1));
+        }
+        new LoadGenerator(new Config(settings.configurationAt("loadgen")), System.out).run();
+    }
+
+    /**
+     * Runs the configured load for the configured duration, printing a report at every interval
+     * @throws InterruptedException If interrupted during the run
+     */
+    public void run() throws InterruptedException {
+        int agents = config.getIntegerParam("agents", 1);
+        int plugins = config.getIntegerParam("plugins", 1);
+        double logRate = config.getDoubleParam("log_rate", 10d);
+        double kpiRate = config.getDoubleParam("kpi_rate", 10d);
+        double rpcRate = config.getDoubleParam("rpc_rate", 1d);
+        long duration = config.getLongParam("duration", 60L);
+        long reportInterval = config.getLongParam("report_interval", 10L);
+        ScheduledExecutorService drivers = Executors.newScheduledThreadPool(config.getIntegerParam("driver_threads",
+                Runtime.getRuntime().availableProcessors()));
+        ExecutorService callers = Executors.newFixedThreadPool(config.getIntegerParam("rpc_threads", 16));
+        running = true;
+        final boolean jms = "jms".equalsIgnoreCase(config.getStringParam("transport", "channel"));
+        BrokerService broker = null;
+        JmsTransport transport = null;
+        final ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory("vm://loadgen?create=false");
+        if (jms) {
+            broker = startBroker();
+            transport = new JmsTransport(msgOutQueue, connectionFactory, new JmsTransport.DestinationResolver() {
+                @Override
+                public String resolve(MsgEvent msg) {
+                    return JMS_QUEUE;
+                }
+            }, new CLogger(LoadGenerator.class, new LinkedBlockingQueue<MsgEvent>(), "loadgen", "transport", null));
+            transport.setConnectionCount(config.getIntegerParam("jms_connections", 1));
+            transport.setSenderCount(config.getIntegerParam("jms_senders", 1));
+            transport.setBatchSize(config.getIntegerParam("jms_batch_size", 100));
+            transport.start();
+        }
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (jms)
+                    consumeJms(connectionFactory);
+                else
+                    consume();
+            }
+        }, "LoadGenerator-consumer");
+        consumer.setDaemon(true);
+        consumer.start();
+
+        HierarchicalConfiguration pluginSettings = new HierarchicalConfiguration();
+        pluginSettings.addProperty("plugin.watchdogtimer", String.valueOf(config.getLongParam("watchdogtimer", 5000L)));
+        Config pluginConfig = new Config(pluginSettings.configurationAt("plugin"));
+        for (int a = 0; a < agents; a++) {
+            for (int p = 0; p < plugins; p++) {
+                final String agent = "agent-" + a;
+                final String plugin = "plugin/" + p;
+                final CLogger logger = new CLogger(LoadGenerator.class, msgOutQueue, "loadgen", agent, plugin);
+                final RPC rpc = new RPC(msgOutQueue, "loadgen", agent, plugin, logger);
+                rpcs.put("callId-loadgen-" + agent + "-" + plugin, rpc);
+                WatchDog watchDog = new WatchDog("loadgen", agent, plugin, logger, pluginConfig);
+                watchDogs.add(watchDog.start());
+                schedule(drivers, logRate, new Runnable() {
+                    @Override
+                    public void run() {
+                        logger.info("Simulated log message from {}", plugin);
+                    }
+                });
+                schedule(drivers, kpiRate, new Runnable() {
+                    @Override
+                    public void run() {
+                        MsgEvent kpi = new MsgEvent(MsgEvent.Type.KPI, "loadgen", agent, plugin, "Simulated KPI");
+                        kpi.setSrc("loadgen", agent, plugin);
+                        kpi.setDst("loadgen", null, null);
+                        kpi.setParam("value", String.valueOf(System.nanoTime() % 1000));
+                        logger.log(kpi);
+                    }
+                });
+                final ExecutorService rpcCallers = callers;
+                schedule(drivers, rpcRate, new Runnable() {
+                    @Override
+                    public void run() {
+                        rpcCallers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                call(rpc, agent, plugin);
+                            }
+                        });
+                    }
+                });
+            }
+        }
+
+        Snapshot last = new Snapshot();
+        long end = System.currentTimeMillis() + duration * 1000L;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(reportInterval * 1000L, Math.max(1L, end - System.currentTimeMillis())));
+            last = report(last);
+        }
+        drivers.shutdownNow();
+        callers.shutdownNow();
+        for (WatchDog watchDog : watchDogs)
+            watchDog.stop();
+        if (transport != null)
+            transport.stop();
+        running = false;
+        consumer.interrupt();
+        consumer.join();
+        if (broker != null) {
+            try {
+                broker.stop();
+            } catch (Exception e) {
+                out.println("Broker stop failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Starts the embedded broker the JMS transport sends to
+     * @return              The running broker
+     */
+    private static BrokerService startBroker() {
+        BrokerService broker = new BrokerService();
+        broker.setBrokerName("loadgen");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        try {
+            broker.start();
+        } catch (Exception e) {
+            throw new IllegalStateException("Embedded broker failed to start", e);
+        }
+        return broker;
+    }
+
+    /**
+     * Schedules a task at a fixed rate
+     * @param drivers       Scheduler
+     * @param rate          Executions per second, 0 to skip
+     * @param task          Task to run
+     */
+    private static void schedule(ScheduledExecutorService drivers, double rate, Runnable task) {
+        if (rate <= 0d)
+            return;
+        long period = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+        long delay = (long) (Math.random() * period);
+        drivers.scheduleAtFixedRate(task, delay, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Issues a single RPC call and records its round-trip time
+     * @param rpc           RPC helper of the calling plugin
+     * @param agent         Calling agent
+     * @param plugin        Calling plugin
+     */
+    private void call(RPC rpc, String agent, String plugin) {
+        MsgEvent request = new MsgEvent(MsgEvent.Type.EXEC, "loadgen", agent, plugin, "Simulated RPC");
+        request.setSrc("loadgen", agent, plugin);
+        request.setDst("loadgen", null, null);
+        long start = System.nanoTime();
+        if (rpc.call(request) != null)
+            rpcLatency.record(System.nanoTime() - start);
+        else
+            rpcFailures.incrementAndGet();
+    }
+
+    /**
+     * Drains the outbound channel, answering RPC calls
+     */
+    private void consume() {
+        while (running) {
+            try {
+                handle(msgOutQueue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drains the queue of the embedded broker, answering RPC calls
+     * @param connectionFactory Factory of connections to the embedded broker
+     */
+    private void consumeJms(ActiveMQConnectionFactory connectionFactory) {
+        Connection connection = null;
+        try {
+            connection = connectionFactory.createConnection();
+            connection.start();
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageConsumer receiver = session.createConsumer(session.createQueue(JMS_QUEUE));
+            while (running) {
+                TextMessage message = (TextMessage) receiver.receive(100L);
+                if (message != null)
+                    handle(MsgEventCodecs.json().decode(message.getText()));
+            }
+        } catch (JMSException | IOException e) {
+            if (running)
+                out.println("JMS consumer failed: " + e.getMessage());
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (JMSException e) {
+                    out.println("JMS consumer close failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Accounts for a consumed message, answering it if it is an RPC call
+     * @param msg           Message taken from the channel
+     */
+    private void handle(MsgEvent msg) {
+        String enqueued = msg.getParam(PARAM_ENQUEUED);
+        if (enqueued != null)
+            channelLatency.record(System.nanoTime() - Long.parseLong(enqueued));
+        consumed.incrementAndGet(msg.getMsgType().ordinal());
+        if (msg.getMsgType() != MsgEvent.Type.EXEC)
+            return;
+        for (Map.Entry<String, String> param : msg.getParams().entrySet()) {
+            if (!param.getKey().startsWith(MsgEventDeduplicator.CALL_ID_PREFIX))
+                continue;
+            RPC rpc = rpcs.get(param.getKey());
+            if (rpc != null) {
+                String callId = param.getValue();
+                msg.setReturn();
+                rpc.putReturnMessage(callId, msg);
+            }
+            break;
+        }
+    }
+
+    /**
+     * Number of messages consumed
+     * @param type          Message type
+     * @return              Messages of the type consumed since the start of the run
+     */
+    long getConsumed(MsgEvent.Type type) {
+        return consumed.get(type.ordinal());
+    }
+
+    /**
+     * Number of failed RPC calls
+     * @return              RPC calls that returned nothing since the start of the run
+     */
+    long getRpcFailures() {
+        return rpcFailures.get();
+    }
+
+    /**
+     * Prints the activity since the previous report
+     * @param previous      Counters at the previous report
+     * @return              Counters at this report
+     */
+    private Snapshot report(Snapshot previous) {
+        Snapshot current = new Snapshot();
+        double seconds = Math.max(1e-9, (current.time - previous.time) / 1e9);
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("[%tT] msg/s", System.currentTimeMillis()));
+        for (MsgEvent.Type type : MsgEvent.Type.values()) {
+            long delta = current.consumed[type.ordinal()] - previous.consumed[type.ordinal()];
+            if (delta > 0)
+                sb.append(String.format(" %s=%.0f", type.name(), delta / seconds));
+        }
+        sb.append(String.format(" | channel p50=%s p99=%s p999=%s", micros(channelLatency.percentile(0.5d)),
+                micros(channelLatency.percentile(0.99d)), micros(channelLatency.percentile(0.999d))));
+        sb.append(String.format(" | rpc p50=%s p99=%s p999=%s failed=%d", micros(rpcLatency.percentile(0.5d)),
+                micros(rpcLatency.percentile(0.99d)), micros(rpcLatency.percentile(0.999d)), rpcFailures.get()));
+        sb.append(String.format(" | dropped=%d queued=%d | gc=%dms heap=%dMB", msgOutQueue.rejected.get(),
+                msgOutQueue.size(), current.gcMillis - previous.gcMillis, current.heapBytes / (1024 * 1024)));
+        out.println(sb);
+        channelLatency.reset();
+        rpcLatency.reset();
+        return current;
+    }
+
+    /**
+     * Formats a latency
+     * @param nanos         Latency (in nanoseconds)
+     * @return              Latency in microseconds
+     */
+    private static String micros(long nanos) {
+        return (nanos / 1000L) + "us";
+    }
+
+    /**
+     * Counters at a point in time
+     */
+    private class Snapshot {
+        /** Capture time (in nanoseconds) */
+        final long time = System.nanoTime();
+        /** Messages consumed by message type ordinal */
+        final long[] consumed = new long[MsgEvent.Type.values().length];
+        /** Accumulated GC time (in milliseconds) */
+        final long gcMillis;
+        /** Heap in use (in bytes) */
+        final long heapBytes;
+
+        Snapshot() {
+            for (int i = 0; i < consumed.length; i++)
+                consumed[i] = LoadGenerator.this.consumed.get(i);
+            long gc = 0L;
+            for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+                gc += Math.max(0L, bean.getCollectionTime());
+            gcMillis = gc;
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            heapBytes = memory.getHeapMemoryUsage().getUsed();
+        }
+    }
+
+    /**
+     * Outbound channel stamping each accepted message with its enqueue time
+     */
+    private static class StampingQueue extends LinkedBlockingQueue<MsgEvent> {
+        private static final long serialVersionUID = 1L;
+        /** Messages refused because the channel was full */
+        final AtomicLong rejected = new AtomicLong();
+
+        StampingQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public boolean offer(MsgEvent msg) {
+            msg.setParam(PARAM_ENQUEUED, String.valueOf(System.nanoTime()));
+            if (super.offer(msg))
+                return true;
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        @Override
+        public boolean offer(MsgEvent msg, long timeout, TimeUnit unit) throws InterruptedException {
+            msg.setParam(PARAM_ENQUEUED, String.valueOf(System.nanoTime()));
+            if (super.offer(msg, timeout, unit))
+                return true;
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        @Override
+        public void put(MsgEvent msg) throws InterruptedException {
+            msg.setParam(PARAM_ENQUEUED, String.valueOf(System.nanoTime()));
+            super.put(msg);
+        }
+    }
+
+    /**
+     * Concurrent log-linear latency histogram with roughly 6% relative precision
+     */
+    static class Histogram {
+        /** Sub-buckets per power of two */
+        private static final int SUB_BUCKETS = 16;
+        /** Bucket counts */
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+        /**
+         * Records a value
+         * @param value     Value to record, negative values are recorded as 0
+         */
+        void record(long value) {
+            counts.incrementAndGet(index(Math.max(0L, value)));
+        }
+
+        /**
+         * Estimates a percentile
+         * @param fraction  Percentile as a fraction (e.g. 0.99)
+         * @return          Upper bound of the bucket containing the percentile, 0 if nothing was recorded
+         */
+        long percentile(double fraction) {
+            long total = 0L;
+            for (int i = 0; i < counts.length(); i++)
+                total += counts.get(i);
+            if (total == 0L)
+                return 0L;
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0L;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank)
+                    return upperBound(i);
+            }
+            return upperBound(counts.length() - 1);
+        }
+
+        /**
+         * Clears all counts
+         */
+        void reset() {
+            for (int i = 0; i < counts.length(); i++)
+                counts.set(i, 0L);
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) ((value >>> (exponent - 4)) & (SUB_BUCKETS - 1));
+            return (exponent - 3) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+            int exponent = index / SUB_BUCKETS + 3;
+            long sub = index % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << (exponent - 4)) - 1;
+        }
+    }
+}
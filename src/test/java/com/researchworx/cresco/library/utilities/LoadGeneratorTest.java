@@ -0,0 +1,42 @@
+package com.researchworx.cresco.library.utilities;
+
+import com.researchworx.cresco.library.core.Config;
+import com.researchworx.cresco.library.messaging.MsgEvent;
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertTrue;
+
+public class LoadGeneratorTest {
+    @Test
+    public void testChannelRun() throws Exception {
+        LoadGenerator generator = run("channel");
+        assertTrue(generator.getConsumed(MsgEvent.Type.KPI) > 0);
+        assertTrue(generator.getConsumed(MsgEvent.Type.EXEC) > 0);
+    }
+
+    @Test
+    public void testJmsRun() throws Exception {
+        LoadGenerator generator = run("jms");
+        assertTrue(generator.getConsumed(MsgEvent.Type.KPI) > 0);
+        assertTrue(generator.getConsumed(MsgEvent.Type.EXEC) > 0);
+    }
+
+    private static LoadGenerator run(String transport) throws InterruptedException {
+        HierarchicalConfiguration settings = new HierarchicalConfiguration();
+        settings.addProperty("loadgen.transport", transport);
+        settings.addProperty("loadgen.plugins", "2");
+        settings.addProperty("loadgen.log_rate", "50");
+        settings.addProperty("loadgen.kpi_rate", "50");
+        settings.addProperty("loadgen.rpc_rate", "5");
+        settings.addProperty("loadgen.duration", "2");
+        settings.addProperty("loadgen.report_interval", "1");
+        LoadGenerator generator = new LoadGenerator(new Config(settings.configurationAt("loadgen")),
+                new PrintStream(new ByteArrayOutputStream()));
+        generator.run();
+        return generator;
+    }
+}
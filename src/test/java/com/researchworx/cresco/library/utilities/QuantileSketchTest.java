@@ -0,0 +1,117 @@
+package com.researchworx.cresco.library.utilities;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QuantileSketchTest {
+    private static final double[] QUANTILES = {0d, 0.01, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999, 1d};
+
+    @Test
+    public void testQuantileAccuracy() {
+        Random random = new Random(42);
+        double[] values = new double[100000];
+        QuantileSketch sketch = new QuantileSketch(0.01, QuantileSketch.DEFAULT_MAX_BUCKETS);
+        for (int i = 0; i < values.length; i++) {
+            // Log-normal, spanning several orders of magnitude
+            values[i] = Math.exp(random.nextGaussian() * 2d);
+            sketch.add(values[i]);
+        }
+        assertWithinAccuracy(values, sketch, 0.01);
+    }
+
+    @Test
+    public void testNegativeAndZeroValues() {
+        double[] values = new double[2001];
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i - 1000;
+            sketch.add(values[i]);
+        }
+        sketch.add(Double.NaN);
+        assertEquals(values.length, sketch.getCount());
+        assertEquals(0d, sketch.quantile(0.5), 0d);
+        assertWithinAccuracy(values, sketch, 0.01);
+    }
+
+    @Test
+    public void testMergeMatchesSingleSketch() {
+        Random random = new Random(7);
+        QuantileSketch whole = new QuantileSketch();
+        QuantileSketch left = new QuantileSketch();
+        QuantileSketch right = new QuantileSketch();
+        for (int i = 0; i < 50000; i++) {
+            double value = random.nextDouble() * 1000d;
+            whole.add(value);
+            (i % 2 == 0 ? left : right).add(value);
+        }
+        left.merge(right);
+        assertEquals(whole.getCount(), left.getCount());
+        assertEquals(whole.encode(), left.encode());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeRejectsDifferentAccuracy() {
+        new QuantileSketch(0.01, 64).merge(new QuantileSketch(0.02, 64));
+    }
+
+    @Test
+    public void testCollapseKeepsCountAndUpperQuantiles() {
+        QuantileSketch sketch = new QuantileSketch(0.01, 64);
+        double[] values = new double[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.pow(10d, i / 1000d);
+            sketch.add(values[i]);
+        }
+        assertEquals(values.length, sketch.getCount());
+        // The lowest buckets were folded, the highest ones are intact
+        assertWithinAccuracy(values, sketch, 0.01, 0.99, 0.999, 1d);
+        assertTrue(sketch.quantile(0d) > values[0]);
+    }
+
+    @Test
+    public void testEncodeRoundTrip() {
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = -50; i <= 500; i++)
+            sketch.add(i * 1.5);
+        QuantileSketch decoded = QuantileSketch.decode(sketch.encode());
+        assertNotNull(decoded);
+        assertEquals(sketch.encode(), decoded.encode());
+        for (double quantile : QUANTILES)
+            assertEquals(sketch.quantile(quantile), decoded.quantile(quantile), 0d);
+        QuantileSketch empty = QuantileSketch.decode(new QuantileSketch().encode());
+        assertNotNull(empty);
+        assertEquals(0, empty.getCount());
+    }
+
+    @Test
+    public void testDecodeInvalid() {
+        assertNull(QuantileSketch.decode("0.01|0|abc|"));
+        assertNull(QuantileSketch.decode("0.01|0|0:|"));
+        assertNull(QuantileSketch.decode("0.01|0|0:|5:1,-1"));
+        assertNull(QuantileSketch.decode("0.01|0|0:"));
+        assertNull(QuantileSketch.decode("2|0|0:|0:"));
+        assertNull(QuantileSketch.decode(null));
+    }
+
+    private static void assertWithinAccuracy(double[] values, QuantileSketch sketch, double accuracy) {
+        assertWithinAccuracy(values, sketch, accuracy, QUANTILES);
+    }
+
+    private static void assertWithinAccuracy(double[] values, QuantileSketch sketch, double accuracy,
+                                             double... quantiles) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (double quantile : quantiles) {
+            double expected = sorted[(int) (quantile * (sorted.length - 1))];
+            double estimate = sketch.quantile(quantile);
+            assertEquals("quantile " + quantile, expected, estimate, Math.abs(expected) * accuracy + 1e-9);
+        }
+    }
+}